@@ -0,0 +1,94 @@
+package com.wd.mydb.backend;
+
+import com.wd.mydb.backend.dm.DataManager;
+import com.wd.mydb.backend.server.Server;
+import com.wd.mydb.backend.tm.TransactionManager;
+import com.wd.mydb.backend.utils.Panic;
+import com.wd.mydb.backend.vm.VersionManager;
+import com.wd.mydb.common.Error;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * 服务端入口
+ * -create DBPath: 在 DBPath 创建空的数据库文件
+ * -open DBPath [-mem 64MB] [-port 9999]: 打开数据库并启动服务端
+ */
+public class Launcher {
+
+    public static final int PORT = 9999;
+
+    public static final long DEFAULT_MEM = (1 << 20) * 64;
+    public static final long KB = 1 << 10;
+    public static final long MB = 1 << 20;
+    public static final long GB = 1 << 30;
+
+    public static void main(String[] args) throws ParseException {
+        Options options = new Options();
+        options.addOption("open", true, "-open DBPath");
+        options.addOption("create", true, "-create DBPath");
+        options.addOption("mem", true, "-mem 64MB");
+        options.addOption("port", true, "-port 9999");
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+
+        if (cmd.hasOption("open")) {
+            int port = cmd.hasOption("port") ? Integer.parseInt(cmd.getOptionValue("port")) : PORT;
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), port);
+            return;
+        }
+        if (cmd.hasOption("create")) {
+            createDB(cmd.getOptionValue("create"));
+            return;
+        }
+        System.out.println("Usage: launcher (open|create) DBPath");
+    }
+
+    private static void createDB(String path) {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, DEFAULT_MEM, tm);
+        tm.close();
+        dm.close();
+    }
+
+    private static void openDB(String path, long mem, int port) {
+        TransactionManager tm = TransactionManager.open(path);
+        DataManager dm = DataManager.open(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        Server server = new Server(port, vm);
+        try {
+            server.start();
+            server.awaitClose();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        } finally {
+            dm.close();
+            tm.close();
+        }
+    }
+
+    private static long parseMem(String memStr) {
+        if (memStr == null || "".equals(memStr)) {
+            return DEFAULT_MEM;
+        }
+        if (memStr.length() < 2) {
+            Panic.panic(Error.InvalidMemException);
+        }
+        String unit = memStr.substring(memStr.length() - 2);
+        long memNum = Long.parseLong(memStr.substring(0, memStr.length() - 2));
+        switch (unit) {
+            case "KB":
+                return memNum * KB;
+            case "MB":
+                return memNum * MB;
+            case "GB":
+                return memNum * GB;
+            default:
+                Panic.panic(Error.InvalidMemException);
+        }
+        return DEFAULT_MEM;
+    }
+}
@@ -2,12 +2,33 @@ package com.wd.mydb.backend.common;
 
 import com.wd.mydb.common.Error;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.NoSuchElementException;
-import java.util.Set;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongPredicate;
 
+/**
+ * 引用计数缓存框架
+ *
+ * 缓存按 key 的哈希被划分为若干段 (Segment), 每段持有自己的锁,
+ * 不同段上的 get/release 互不阻塞.
+ * 同一个 key 的并发加载只由第一个线程执行 getForCache,
+ * 其他线程在该 key 对应的 CompletableFuture 上等待, 不再轮询.
+ *
+ * 引用计数降为 0 的资源仍然留在缓存中, 直到缓存已满时被 ReplacementPolicy 选中驱逐,
+ * 驱逐时才调用 releaseForCache.
+ * 所有资源都被引用时, 新的 get 会短暂等待其他线程释放, 超时后才抛出 CacheFullException.
+ * 预读通过 beginLoad / completeLoad 把资源以引用计数 0 放入缓存, 缓存满且无法驱逐时直接放弃.
+ * 扫描资源 (get(key, true)) 不进入替换策略, 由调用方通过 retire 循环使用自己的名额, 不挤占热点资源.
+ */
 public abstract class AbstractCache<T> {
 
     /**
@@ -25,128 +46,561 @@ public abstract class AbstractCache<T> {
     protected abstract void releaseForCache(T obj);
 
     /**
-     * 实际缓存的数据
+     * 段数的上限, 必须是 2 的幂
      */
-    private HashMap<Long, T> cache;
+    private static final int MAX_SEGMENTS = 64;
 
     /**
-     * 资源的引用个数
+     * 缓存已满且无法驱逐时, 最多等待的时间
      */
-    private HashMap<Long, Integer> references;
+    private static final long FULL_WAIT_MILLIS = 200;
 
     /**
-     * 正在被获取的资源
+     * 缓存段
      */
-    private HashMap<Long, Boolean> getting;
+    private final Segment<T>[] segments;
+
+    private final int segmentMask;
 
     /**
      * 缓存的最大缓存资源数
      */
-    private int maxResource;
+    private final int maxResource;
+
+    /**
+     * 缓存中元素的个数 (包括正在被获取的资源), 所有段共享
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * 替换策略, 除 onAccess 外只在持有 policyLock 时访问
+     * 加锁顺序: 段锁 -> policyLock
+     */
+    private final ReplacementPolicy policy;
+    private final Lock policyLock = new ReentrantLock();
 
     /**
-     * 缓存中元素的个数
+     * 等待缓存腾出空间的线程
      */
-    private int count = 0;
-    
-    private Lock lock;
-    
+    private final Lock spaceLock = new ReentrantLock();
+    private final Condition spaceAvailable = spaceLock.newCondition();
+    private final AtomicInteger spaceWaiters = new AtomicInteger();
+
+    private final CacheStats stats = new CacheStats();
+
     public AbstractCache(int maxResource) {
+        this(maxResource, new ClockPolicy());
+    }
+
+    public AbstractCache(int maxResource, ReplacementPolicy policy) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.policy = policy;
+        int n = segmentCount(Runtime.getRuntime().availableProcessors() * 4);
+        this.segments = newSegments(n);
+        this.segmentMask = n - 1;
     }
-    
+
     protected T get(long key) throws Exception {
+        return get(key, false);
+    }
+
+    /**
+     * @param scan 为 true 时, 新加载的资源作为扫描资源放入缓存: 不进入替换策略, 只能由 retire 移出,
+     *             命中已有资源时也不更新替换策略的访问记录.
+     *             扫描资源被普通的 get 命中后转为普通资源
+     */
+    protected T get(long key, boolean scan) throws Exception {
+        Segment<T> seg = segmentFor(key);
+        CompletableFuture<T> loading;
+        long deadline = 0;
         while (true) {
-            lock.lock();
-            if (getting.containsKey(key)) {
-                // 请求的资源正在被其他线程获取
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    continue;
+            seg.lock.lock();
+            CompletableFuture<T> other = seg.getting.get(key);
+            if (other == null) {
+                CacheEntry<T> entry = seg.entries.get(key);
+                if (entry != null) {
+                    // 资源在缓存中, 直接返回
+                    boolean retained = entry.references == 0;
+                    entry.references ++ ;
+                    boolean promote = !scan && entry.scan;
+                    if (promote) {
+                        promote(entry);
+                    }
+                    seg.lock.unlock();
+                    if (!scan && !promote) {
+                        policy.onAccess(entry);
+                    }
+                    stats.recordHit(retained);
+                    return entry.value;
                 }
+
+                // 尝试获取该资源
+                if (reserve()) {
+                    loading = new CompletableFuture<>();
+                    seg.getting.put(key, loading);
+                    seg.lock.unlock();
+                    break;
+                }
+                seg.lock.unlock();
+
+                // 缓存已满, 驱逐一个资源或等待其他线程释放后重试
+                if (deadline == 0) {
+                    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FULL_WAIT_MILLIS);
+                }
+                makeRoom(deadline);
                 continue;
             }
-            
-            if (cache.containsKey(key)) {
-                // 资源在缓存中, 直接返回
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
-                return obj;
-            }
-            
-            // 尝试获取该资源
-            if (maxResource > 0 && count == maxResource) {
-                lock.unlock();
-                throw Error.CacheFullException;
-            }
-            count ++ ;
-            getting.put(key, true);
-            lock.unlock();
-            break;
-        }
-        
-        T obj = null;
+            seg.lock.unlock();
+
+            // 请求的资源正在被其他线程获取, 等待其完成后重新检查
+            // 加载失败时由本线程重新尝试
+            try {
+                other.join();
+            } catch (CompletionException ignored) {
+            }
+        }
+
+        T obj;
         try {
             obj = getForCache(key);
-        } catch (NoSuchElementException e) {
-            lock.lock();
-            count -- ;
-            getting.remove(key);
-            lock.unlock();
+        } catch (Exception e) {
+            abortLoad(key, loading, e);
             throw e;
         }
 
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
+        install(key, loading, obj, 1, scan);
+        stats.recordMiss();
 
         return obj;
     }
 
     /**
-     * 强行释放一个缓存
+     * 为预读占用 key: 资源不在缓存中, 也没有正在被加载, 且缓存有空位 (或能立即驱逐出空位) 时,
+     * 返回登记好的加载 future, 之后必须调用 completeLoad 或 abortLoad 结束加载;
+     * 否则返回 null. 不会等待.
+     * 加载期间对该 key 的 get 会在 future 上等待, 而不是重复读取
      * @param key
+     * @return
      */
-    protected void release(long key) {
-        lock.lock();
+    protected CompletableFuture<T> beginLoad(long key) {
+        Segment<T> seg = segmentFor(key);
+        boolean evicted = false;
+        while (true) {
+            seg.lock.lock();
+            try {
+                if (seg.getting.containsKey(key) || seg.entries.containsKey(key)) {
+                    return null;
+                }
+                if (reserve()) {
+                    CompletableFuture<T> loading = new CompletableFuture<>();
+                    seg.getting.put(key, loading);
+                    return loading;
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+            if (evicted || !evict()) {
+                return null;
+            }
+            evicted = true;
+        }
+    }
+
+    /**
+     * 结束 beginLoad 开始的加载, 资源以引用计数 0 放入缓存
+     * @param key
+     * @param loading
+     * @param obj
+     */
+    protected void completeLoad(long key, CompletableFuture<T> loading, T obj) {
+        install(key, loading, obj, 0, false);
+        stats.recordPrefetch();
+        signalSpace();
+    }
+
+    /**
+     * 放弃 beginLoad 开始的加载, 等待者会自己重新加载
+     * @param key
+     * @param loading
+     * @param e
+     */
+    protected void abortLoad(long key, CompletableFuture<T> loading, Exception e) {
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
+        count.decrementAndGet();
+        seg.getting.remove(key);
+        seg.lock.unlock();
+        loading.completeExceptionally(e);
+        signalSpace();
+    }
+
+    private void install(long key, CompletableFuture<T> loading, T obj, int references, boolean scan) {
+        Segment<T> seg = segmentFor(key);
+        CacheEntry<T> entry = new CacheEntry<>(key, obj);
+        entry.references = references;
+        entry.scan = scan;
+        seg.lock.lock();
         try {
-            int ref = references.get(key) - 1;
-            if (ref == 0) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
-                count -- ;
-            } else {
-                references.put(key, ref);
+            seg.getting.remove(key);
+            seg.entries.put(key, entry);
+            if (!scan) {
+                policyLock.lock();
+                try {
+                    policy.onInsert(entry);
+                } finally {
+                    policyLock.unlock();
+                }
             }
         } finally {
-            lock.unlock();
+            seg.lock.unlock();
         }
+        loading.complete(obj);
     }
-    
+
+    /**
+     * 移出一个扫描资源, 腾出它占用的名额
+     * 资源仍被引用时转为普通资源, 之后由替换策略正常驱逐; 普通资源或不在缓存中的资源不受影响
+     * @param key
+     */
+    protected void retire(long key) {
+        Segment<T> seg = segmentFor(key);
+        CacheEntry<T> entry;
+        CompletableFuture<T> releasing;
+        seg.lock.lock();
+        try {
+            entry = seg.entries.get(key);
+            if (entry == null || !entry.scan) {
+                return;
+            }
+            if (entry.isPinned()) {
+                promote(entry);
+                return;
+            }
+            releasing = detach(seg, entry);
+        } finally {
+            seg.lock.unlock();
+        }
+        finishRelease(seg, entry, releasing);
+        count.decrementAndGet();
+        stats.recordEviction();
+        signalSpace();
+    }
+
+    /**
+     * 扫描资源转为普通资源, 调用方持有所在段的锁
+     * @param entry
+     */
+    private void promote(CacheEntry<T> entry) {
+        entry.scan = false;
+        policyLock.lock();
+        try {
+            policy.onInsert(entry);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * 释放一个缓存的引用, 引用计数为 0 后资源仍留在缓存中
+     * @param key
+     */
+    protected void release(long key) {
+        Segment<T> seg = segmentFor(key);
+        boolean unpinned;
+        seg.lock.lock();
+        try {
+            CacheEntry<T> entry = seg.entries.get(key);
+            entry.references -- ;
+            unpinned = entry.references == 0;
+        } finally {
+            seg.lock.unlock();
+        }
+        if (unpinned) {
+            signalSpace();
+        }
+    }
+
+    /**
+     * 资源是否在缓存中或正在被加载
+     * @param key
+     * @return
+     */
+    protected boolean contains(long key) {
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
+        try {
+            return seg.entries.containsKey(key) || seg.getting.containsKey(key);
+        } finally {
+            seg.lock.unlock();
+        }
+    }
+
+    /**
+     * 直接丢弃 key 满足 drop 的未被引用的资源, 不调用 releaseForCache, 返回被丢弃的资源
+     * 用于资源在数据源中已经不存在的情况 (如文件被截断), 被引用的资源保持不变.
+     * 丢弃的条目留在替换策略中, 被选为 victim 时因不在段中而被跳过
+     * @param drop
+     * @return
+     */
+    protected List<T> discardIf(LongPredicate drop) {
+        List<T> dropped = new ArrayList<>();
+        for (Segment<T> seg : segments) {
+            seg.lock.lock();
+            try {
+                Iterator<CacheEntry<T>> it = seg.entries.values().iterator();
+                while (it.hasNext()) {
+                    CacheEntry<T> entry = it.next();
+                    if (!drop.test(entry.key) || entry.isPinned()) {
+                        continue;
+                    }
+                    entry.removed = true;
+                    it.remove();
+                    count.decrementAndGet();
+                    dropped.add(entry.value);
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        if (!dropped.isEmpty()) {
+            signalSpace();
+        }
+        return dropped;
+    }
+
+    /**
+     * 引用缓存中当前所有的资源并返回, 调用方处理完后需要逐个 release
+     * 返回前等待此刻正在加载或释放的资源完成, 已经移出缓存的资源的 releaseForCache 都已返回
+     * 不经过替换策略, 也不计入命中统计
+     * @return
+     */
+    protected List<T> pinAll() {
+        List<T> pinned = new ArrayList<>();
+        List<CompletableFuture<T>> pending = new ArrayList<>();
+        for (Segment<T> seg : segments) {
+            seg.lock.lock();
+            try {
+                for (CacheEntry<T> entry : seg.entries.values()) {
+                    entry.references ++ ;
+                    pinned.add(entry.value);
+                }
+                pending.addAll(seg.getting.values());
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        for (CompletableFuture<T> f : pending) {
+            try {
+                f.join();
+            } catch (CompletionException ignored) {
+            }
+        }
+        return pinned;
+    }
+
+    /**
+     * 缓存的命中统计
+     * @return
+     */
+    public CacheStats stats() {
+        return stats;
+    }
+
     protected void close() {
-        lock.lock();
+        for (Segment<T> seg : segments) {
+            seg.lock.lock();
+            try {
+                Iterator<CacheEntry<T>> it = seg.entries.values().iterator();
+                while (it.hasNext()) {
+                    CacheEntry<T> entry = it.next();
+                    entry.removed = true;
+                    releaseForCache(entry.value);
+                    it.remove();
+                    count.decrementAndGet();
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        policyLock.lock();
         try {
-            Set<Long> keys = cache.keySet();
-            for (long key: keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+            policy.clear();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * 为新资源占用一个名额, 缓存已满时返回 false
+     * @return
+     */
+    private boolean reserve() {
+        while (true) {
+            int c = count.get();
+            if (maxResource > 0 && c >= maxResource) {
+                return false;
+            }
+            if (count.compareAndSet(c, c + 1)) {
+                return true;
             }
+        }
+    }
+
+    /**
+     * 驱逐一个未被引用的资源, 没有可驱逐的资源时等待释放, 超过 deadline 则抛出 CacheFullException
+     * @param deadline
+     * @throws Exception
+     */
+    private void makeRoom(long deadline) throws Exception {
+        if (evict()) {
+            return;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            throw Error.CacheFullException;
+        }
+        spaceWaiters.incrementAndGet();
+        spaceLock.lock();
+        try {
+            // 释放者与等待者之间没有共享的判断条件, 用短超时兜底丢失的唤醒
+            spaceAvailable.await(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(10)), TimeUnit.NANOSECONDS);
         } finally {
-            lock.unlock();
+            spaceLock.unlock();
+            spaceWaiters.decrementAndGet();
         }
     }
+
+    /**
+     * 按替换策略驱逐一个资源
+     * @return 是否成功驱逐
+     */
+    private boolean evict() {
+        while (true) {
+            CacheEntry<?> victim;
+            policyLock.lock();
+            try {
+                victim = policy.victim();
+            } finally {
+                policyLock.unlock();
+            }
+            if (victim == null) {
+                return false;
+            }
+
+            Segment<T> seg = segmentFor(victim.key);
+            CacheEntry<T> entry;
+            CompletableFuture<T> releasing;
+            seg.lock.lock();
+            try {
+                entry = seg.entries.get(victim.key);
+                if (entry != victim) {
+                    continue;
+                }
+                if (entry.isPinned()) {
+                    // 被选中后又被引用, 放回策略中
+                    policyLock.lock();
+                    try {
+                        policy.onInsert(entry);
+                    } finally {
+                        policyLock.unlock();
+                    }
+                    continue;
+                }
+                releasing = detach(seg, entry);
+            } finally {
+                seg.lock.unlock();
+            }
+            finishRelease(seg, entry, releasing);
+            count.decrementAndGet();
+            stats.recordEviction();
+            return true;
+        }
+    }
+
+    /**
+     * 把未被引用的资源移出缓存, 并在 getting 中登记一个 future, 调用方持有段锁
+     * 释放期间对该 key 的 get 在 future 上等待, 释放完成后才重新加载, 不会读到还未写回的旧数据
+     * @param seg
+     * @param entry
+     * @return
+     */
+    private CompletableFuture<T> detach(Segment<T> seg, CacheEntry<T> entry) {
+        entry.removed = true;
+        seg.entries.remove(entry.key);
+        CompletableFuture<T> releasing = new CompletableFuture<>();
+        seg.getting.put(entry.key, releasing);
+        return releasing;
+    }
+
+    /**
+     * 在段锁之外调用 releaseForCache (写回可能阻塞), 完成后唤醒等待该 key 的线程
+     * @param seg
+     * @param entry
+     * @param releasing
+     */
+    private void finishRelease(Segment<T> seg, CacheEntry<T> entry, CompletableFuture<T> releasing) {
+        try {
+            releaseForCache(entry.value);
+        } finally {
+            seg.lock.lock();
+            try {
+                seg.getting.remove(entry.key, releasing);
+            } finally {
+                seg.lock.unlock();
+            }
+            releasing.complete(null);
+        }
+    }
+
+    private void signalSpace() {
+        if (spaceWaiters.get() == 0) {
+            return;
+        }
+        spaceLock.lock();
+        try {
+            spaceAvailable.signalAll();
+        } finally {
+            spaceLock.unlock();
+        }
+    }
+
+    private Segment<T> segmentFor(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return segments[(int) (h ^ (h >>> 32)) & segmentMask];
+    }
+
+    private static int segmentCount(int hint) {
+        int n = 1;
+        while (n < hint && n < MAX_SEGMENTS) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Segment<T>[] newSegments(int n) {
+        Segment<T>[] segs = (Segment<T>[]) new Segment<?>[n];
+        for (int i = 0; i < n; i++) {
+            segs[i] = new Segment<>();
+        }
+        return segs;
+    }
+
+    /**
+     * 一个缓存段, 其中的表只在持有 lock 时访问
+     */
+    private static final class Segment<T> {
+
+        private final Lock lock = new ReentrantLock();
+
+        /**
+         * 实际缓存的数据及其引用个数
+         */
+        private final HashMap<Long, CacheEntry<T>> entries = new HashMap<>();
+
+        /**
+         * 正在被获取的资源, 等待者在对应的 future 上阻塞
+         */
+        private final HashMap<Long, CompletableFuture<T>> getting = new HashMap<>();
+    }
 }
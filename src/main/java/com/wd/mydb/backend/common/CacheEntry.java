@@ -0,0 +1,70 @@
+package com.wd.mydb.backend.common;
+
+/**
+ * AbstractCache 中的一个缓存项
+ * references 只在持有所在段的锁时修改, 替换策略只读它来跳过被引用的项
+ * queue 由替换策略自己使用, 只在持有策略锁时访问
+ */
+public class CacheEntry<T> {
+
+    final long key;
+    final T value;
+
+    /**
+     * 资源的引用个数
+     */
+    volatile int references;
+
+    /**
+     * 自上次被替换策略检查后是否被访问过
+     */
+    volatile boolean referenced;
+
+    /**
+     * 扫描资源, 不在替换策略中, 只在持有所在段的锁时修改
+     */
+    volatile boolean scan;
+
+    /**
+     * 已被移出缓存
+     */
+    volatile boolean removed;
+
+    /**
+     * 替换策略私有的队列标记
+     */
+    int queue;
+
+    CacheEntry(long key, T value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    public boolean isPinned() {
+        return references > 0;
+    }
+
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    public boolean isReferenced() {
+        return referenced;
+    }
+
+    public void setReferenced(boolean referenced) {
+        this.referenced = referenced;
+    }
+
+    public int getQueue() {
+        return queue;
+    }
+
+    public void setQueue(int queue) {
+        this.queue = queue;
+    }
+}
@@ -0,0 +1,79 @@
+package com.wd.mydb.backend.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存的命中统计
+ * retainedHits 为命中了引用计数为 0 的资源的次数,
+ * 即因为资源在释放后仍被保留而省掉的一次 getForCache (对 PageCache 而言是一次磁盘读)
+ */
+public class CacheStats {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder retainedHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder prefetches = new LongAdder();
+
+    void recordHit(boolean retained) {
+        hits.increment();
+        if (retained) {
+            retainedHits.increment();
+        }
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordEviction() {
+        evictions.increment();
+    }
+
+    void recordPrefetch() {
+        prefetches.increment();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getRetainedHits() {
+        return retainedHits.sum();
+    }
+
+    /**
+     * 调用 getForCache 成功加载的次数
+     * @return
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * 预读放入缓存的资源个数, 不计入 misses
+     * @return
+     */
+    public long getPrefetches() {
+        return prefetches.sum();
+    }
+
+    public double getHitRate() {
+        long h = getHits();
+        long total = h + getMisses();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHits()
+                + " retainedHits=" + getRetainedHits()
+                + " misses=" + getMisses()
+                + " evictions=" + getEvictions()
+                + " prefetches=" + getPrefetches();
+    }
+}
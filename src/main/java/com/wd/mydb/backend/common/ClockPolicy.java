@@ -0,0 +1,58 @@
+package com.wd.mydb.backend.common;
+
+import java.util.ArrayDeque;
+
+/**
+ * CLOCK 替换策略
+ * 所有资源排成一个环, 命中时只设置访问位,
+ * 指针扫过时清除访问位, 遇到访问位为 0 且未被引用的资源即将其驱逐
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    /**
+     * 队首即为时钟指针所指的位置
+     */
+    private final ArrayDeque<CacheEntry<?>> ring = new ArrayDeque<>();
+
+    @Override
+    public void onInsert(CacheEntry<?> entry) {
+        if (!entry.isRemoved()) {
+            ring.addLast(entry);
+        }
+    }
+
+    @Override
+    public void onAccess(CacheEntry<?> entry) {
+        if (!entry.isReferenced()) {
+            entry.setReferenced(true);
+        }
+    }
+
+    @Override
+    public CacheEntry<?> victim() {
+        // 两圈之内必定能清掉所有访问位, 仍找不到则说明全部被引用
+        int limit = ring.size() * 2;
+        for (int i = 0; i < limit && !ring.isEmpty(); i++) {
+            CacheEntry<?> entry = ring.pollFirst();
+            if (entry.isRemoved()) {
+                continue;
+            }
+            if (entry.isPinned()) {
+                ring.addLast(entry);
+                continue;
+            }
+            if (entry.isReferenced()) {
+                entry.setReferenced(false);
+                ring.addLast(entry);
+                continue;
+            }
+            return entry;
+        }
+        return null;
+    }
+
+    @Override
+    public void clear() {
+        ring.clear();
+    }
+}
@@ -0,0 +1,33 @@
+package com.wd.mydb.backend.common;
+
+/**
+ * 缓存替换策略
+ * 除 onAccess 外, 所有方法都由 AbstractCache 在持有策略锁时调用,
+ * onAccess 在命中路径上无锁调用, 实现只能做简单的标记
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * 资源被加载进缓存
+     * @param entry
+     */
+    void onInsert(CacheEntry<?> entry);
+
+    /**
+     * 资源在缓存中被命中
+     * @param entry
+     */
+    void onAccess(CacheEntry<?> entry);
+
+    /**
+     * 选出一个未被引用的资源并将其移出策略, 没有可驱逐的资源时返回 null
+     * 调用方在真正驱逐前会再次检查引用计数, 失败时重新 onInsert
+     * @return
+     */
+    CacheEntry<?> victim();
+
+    /**
+     * 清空策略中记录的所有资源
+     */
+    void clear();
+}
@@ -0,0 +1,118 @@
+package com.wd.mydb.backend.common;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+
+/**
+ * 2Q 替换策略, 能抵抗一次性的顺序扫描
+ *
+ * 首次加载的资源进入 A1in (FIFO), 被 A1in 驱逐的资源只在 A1out 中留下 key;
+ * 再次加载时 key 若还在 A1out 中, 说明它被反复访问, 直接进入 Am.
+ * Am 用 CLOCK 近似 LRU, 这样命中路径上无需加锁.
+ * 扫描只会冲刷 A1in, 热点资源留在 Am 中.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    private static final int A1IN = 1;
+    private static final int AM = 2;
+
+    private final ArrayDeque<CacheEntry<?>> a1in = new ArrayDeque<>();
+    private final ArrayDeque<Long> a1outOrder = new ArrayDeque<>();
+    private final HashSet<Long> a1out = new HashSet<>();
+    private final ClockPolicy am = new ClockPolicy();
+
+    /**
+     * A1in 的目标大小与 A1out 的容量
+     */
+    private final int kin;
+    private final int kout;
+
+    /**
+     * 当前在 A1in 中的有效资源个数
+     */
+    private int a1inSize;
+
+    public TwoQueuePolicy(int capacity) {
+        this.kin = Math.max(1, capacity / 4);
+        this.kout = Math.max(1, capacity / 2);
+    }
+
+    @Override
+    public void onInsert(CacheEntry<?> entry) {
+        if (entry.isRemoved()) {
+            return;
+        }
+        if (entry.getQueue() == AM || a1out.remove(entry.getKey())) {
+            entry.setQueue(AM);
+            am.onInsert(entry);
+        } else {
+            entry.setQueue(A1IN);
+            a1in.addLast(entry);
+            a1inSize ++ ;
+        }
+    }
+
+    @Override
+    public void onAccess(CacheEntry<?> entry) {
+        // A1in 中的命中不提升, 与 2Q 原文一致
+        if (entry.getQueue() == AM) {
+            am.onAccess(entry);
+        }
+    }
+
+    @Override
+    public CacheEntry<?> victim() {
+        if (a1inSize > kin) {
+            CacheEntry<?> entry = pollA1in();
+            if (entry != null) {
+                return entry;
+            }
+        }
+        CacheEntry<?> entry = am.victim();
+        if (entry != null) {
+            return entry;
+        }
+        return pollA1in();
+    }
+
+    /**
+     * 按 FIFO 顺序驱逐 A1in 中第一个未被引用的资源, 并把它的 key 记入 A1out
+     * @return
+     */
+    private CacheEntry<?> pollA1in() {
+        int limit = a1in.size();
+        for (int i = 0; i < limit; i++) {
+            CacheEntry<?> entry = a1in.pollFirst();
+            if (entry.isRemoved()) {
+                a1inSize -- ;
+                continue;
+            }
+            if (entry.isPinned()) {
+                a1in.addLast(entry);
+                continue;
+            }
+            a1inSize -- ;
+            rememberA1out(entry.getKey());
+            return entry;
+        }
+        return null;
+    }
+
+    private void rememberA1out(long key) {
+        if (a1out.add(key)) {
+            a1outOrder.addLast(key);
+        }
+        while (a1out.size() > kout) {
+            a1out.remove(a1outOrder.pollFirst());
+        }
+    }
+
+    @Override
+    public void clear() {
+        a1in.clear();
+        a1inSize = 0;
+        a1out.clear();
+        a1outOrder.clear();
+        am.clear();
+    }
+}
@@ -0,0 +1,73 @@
+package com.wd.mydb.backend.dm;
+
+import com.wd.mydb.backend.dm.dataItem.DataItem;
+import com.wd.mydb.backend.dm.logger.Logger;
+import com.wd.mydb.backend.dm.logger.SegmentedLogger;
+import com.wd.mydb.backend.dm.page.PageOne;
+import com.wd.mydb.backend.dm.pageCache.PageCache;
+import com.wd.mydb.backend.tm.TransactionManager;
+
+import java.io.File;
+
+public interface DataManager {
+
+    /**
+     * 读取 uid 对应的 DataItem, 已被撤销的 DataItem 返回 null
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    DataItem read(long uid) throws Exception;
+
+    /**
+     * 插入数据, 返回 uid
+     * @param xid
+     * @param data
+     * @return
+     * @throws Exception
+     */
+    long insert(long xid, byte[] data) throws Exception;
+    void close();
+
+    /**
+     * DataItem 直接引用页面的堆内数组, 因此使用 HEAP 实现的 PageCache
+     */
+    static DataManager create(String path, long mem, TransactionManager tm) {
+        PageCache pc = PageCache.create(path, mem);
+        Logger lg = Logger.createSegmented(path, SegmentedLogger.DEFAULT_SEGMENT_SIZE);
+
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, mem);
+        dm.initPageOne();
+        dm.startCheckpointer();
+        return dm;
+    }
+
+    /**
+     * 有检查点文件时打开分段日志, 否则是旧版本创建的单文件日志
+     * 恢复之后立即做一次检查点, 再次崩溃时不必重做同样的日志
+     */
+    static DataManager open(String path, long mem, TransactionManager tm) {
+        PageCache pc = PageCache.open(path, mem);
+        Logger lg;
+        if (new File(path + SegmentedLogger.CKPT_SUFFIX).exists()) {
+            lg = Logger.openSegmented(path, SegmentedLogger.DEFAULT_SEGMENT_SIZE);
+        } else {
+            lg = Logger.open(path);
+        }
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, mem);
+        boolean recovered = false;
+        if (!dm.loadCheckPageOne()) {
+            Recover.recover(tm, lg, pc);
+            recovered = true;
+        }
+        dm.fillPageIndex();
+        PageOne.setVcOpen(dm.pageOne);
+        dm.pc.flushPage(dm.pageOne);
+        if (recovered) {
+            dm.checkpoint();
+        }
+        dm.startCheckpointer();
+
+        return dm;
+    }
+}
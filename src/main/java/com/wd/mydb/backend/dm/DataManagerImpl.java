@@ -0,0 +1,266 @@
+package com.wd.mydb.backend.dm;
+
+import com.wd.mydb.backend.common.AbstractCache;
+import com.wd.mydb.backend.dm.dataItem.DataItem;
+import com.wd.mydb.backend.dm.dataItem.DataItemImpl;
+import com.wd.mydb.backend.dm.logger.Logger;
+import com.wd.mydb.backend.dm.logger.SegmentedLogger;
+import com.wd.mydb.backend.dm.page.Page;
+import com.wd.mydb.backend.dm.page.PageOne;
+import com.wd.mydb.backend.dm.page.PageTrailer;
+import com.wd.mydb.backend.dm.page.PageX;
+import com.wd.mydb.backend.dm.pageCache.AccessHint;
+import com.wd.mydb.backend.dm.pageCache.PageCache;
+import com.wd.mydb.backend.dm.pageIndex.PageIndex;
+import com.wd.mydb.backend.dm.pageIndex.PageInfo;
+import com.wd.mydb.backend.tm.TransactionManager;
+import com.wd.mydb.backend.utils.Panic;
+import com.wd.mydb.backend.utils.Types;
+import com.wd.mydb.common.Error;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DataManager 的实现, 同时是 DataItem 的缓存
+ * 缓存中的 DataItem 持有所在页面的引用, 被驱逐时才释放页面,
+ * 因此 DataItem 缓存的容量只取页面缓存的一半, 保证页面缓存总有可驱逐的页面
+ *
+ * 插入与更新都在页面锁内先写日志再修改页面并设置页面 LSN,
+ * 同一页面上的日志顺序与修改顺序一致, 恢复时可以按页面 LSN 跳过已经在页面上的日志
+ * 崩溃时未提交的事务在 TM 中读作 aborted, 它们的修改留在页面上, 由上层的可见性规则忽略, 见 Recover
+ *
+ * 后台线程定期检查日志, 检查点之后的日志超过 CHECKPOINT_LENGTH 时做一次检查点:
+ * 日志滚动到新段后把所有页面刷盘, 之前的段随之丢弃, 崩溃后的恢复时间只与这之后的日志量有关.
+ * 关闭时在页面全部写回之后也做一次检查点.
+ */
+public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
+
+    /**
+     * 找不到空闲页面时, 最多新建页面重试的次数
+     */
+    private static final int MAX_INSERT_RETRY = 5;
+
+    /**
+     * 检查点之后的日志超过这个长度时做检查点
+     */
+    private static final long CHECKPOINT_LENGTH = 2 * SegmentedLogger.DEFAULT_SEGMENT_SIZE;
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 1000;
+
+    TransactionManager tm;
+    PageCache pc;
+    Logger logger;
+    PageIndex pIndex;
+    Page pageOne;
+    private ScheduledExecutorService checkpointer;
+
+    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm, long mem) {
+        super(Math.max(1, (int) (mem / PageCache.PAGE_SIZE) / 2));
+        this.pc = pc;
+        this.logger = logger;
+        this.tm = tm;
+        this.pIndex = new PageIndex();
+    }
+
+    @Override
+    public DataItem read(long uid) throws Exception {
+        DataItemImpl di = (DataItemImpl) super.get(uid);
+        if (!di.isValid()) {
+            di.release();
+            return null;
+        }
+        return di;
+    }
+
+    @Override
+    public long insert(long xid, byte[] data) throws Exception {
+        byte[] raw = DataItem.wrapDataItemRaw(data);
+        if (raw.length > PageX.MAX_FREE_SPACE) {
+            throw Error.DataTooLargeException;
+        }
+
+        PageInfo pi = null;
+        for (int i = 0; i < MAX_INSERT_RETRY; i++) {
+            pi = pIndex.select(raw.length);
+            if (pi != null) {
+                break;
+            }
+            int newPgno = pc.newPage(PageX.InitRaw());
+            pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+        }
+        if (pi == null) {
+            throw Error.DatabaseBusyException;
+        }
+
+        Page pg = null;
+        int freeSpace = pi.freeSpace;
+        try {
+            pg = pc.getPage(pi.pgno);
+            short offset;
+            pg.lock();
+            try {
+                long lsn = logger.log(Recover.insertLog(xid, pg, raw));
+                offset = PageX.insert(pg, raw);
+                PageTrailer.setLSN(pg, lsn);
+            } finally {
+                pg.unlock();
+            }
+            freeSpace = PageX.getFreeSpace(pg);
+            return Types.addressToUid(pi.pgno, offset);
+        } finally {
+            // 将取出的 pg 重新插入 pIndex
+            pIndex.add(pi.pgno, freeSpace);
+            if (pg != null) {
+                pg.release();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (checkpointer != null) {
+            checkpointer.shutdown();
+            try {
+                checkpointer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+        super.close();
+
+        PageOne.setVcClose(pageOne);
+        pageOne.release();
+        checkpoint();
+        logger.close();
+        pc.close();
+    }
+
+    /**
+     * 做一次检查点, 见 Logger.checkpoint
+     */
+    void checkpoint() {
+        logger.checkpoint(() -> {
+            pc.flushAll();
+            return pc.getPageNumber();
+        });
+    }
+
+    /**
+     * 打开或创建完成之后启动检查点线程, 恢复期间不能做检查点
+     */
+    void startCheckpointer() {
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mydb-checkpointer");
+            t.setDaemon(true);
+            return t;
+        });
+        checkpointer.scheduleWithFixedDelay(() -> {
+            if (logger.lengthSinceCheckpoint() >= CHECKPOINT_LENGTH) {
+                checkpoint();
+            }
+        }, CHECKPOINT_INTERVAL_MILLIS, CHECKPOINT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 为 xid 生成 update 日志, 并设置页面 LSN
+     * @param xid
+     * @param di
+     */
+    public void logDataItem(long xid, DataItem di) {
+        Page pg = di.page();
+        pg.lock();
+        try {
+            long lsn = logger.log(Recover.updateLog(xid, di));
+            PageTrailer.setLSN(pg, lsn);
+        } finally {
+            pg.unlock();
+        }
+    }
+
+    public void releaseDataItem(DataItem di) {
+        super.release(di.getUid());
+    }
+
+    /**
+     * UID 可能来自客户端, 读入前先检查它确实指向一个 DataItem:
+     * 页号在 [2, 页数] 之内, 偏移是某个完整 DataItem 的开头, 否则抛出 InvalidUidException
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    @Override
+    protected DataItem getForCache(long uid) throws Exception {
+        short offset = (short) (uid & ((1L << 16) - 1));
+        if (((uid >>> 16) & ((1L << 16) - 1)) != 0) {
+            throw Error.InvalidUidException;
+        }
+        uid >>>= 32;
+        int pgno = (int) (uid & ((1L << 32) - 1));
+        if (pgno < 2 || pgno > pc.getPageNumber()) {
+            throw Error.InvalidUidException;
+        }
+        Page pg = pc.getPage(pgno);
+        boolean valid;
+        pg.lock();
+        try {
+            valid = DataItem.isDataItemAt(pg, offset);
+        } finally {
+            pg.unlock();
+        }
+        if (!valid) {
+            pg.release();
+            throw Error.InvalidUidException;
+        }
+        return DataItem.parseDataItem(pg, offset, this);
+    }
+
+    @Override
+    protected void releaseForCache(DataItem di) {
+        di.page().release();
+    }
+
+    /**
+     * 在创建文件时初始化 PageOne
+     */
+    void initPageOne() {
+        int pgno = pc.newPage(PageOne.InitRaw());
+        assert pgno == 1;
+        try {
+            pageOne = pc.getPage(pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        pc.flushPage(pageOne);
+    }
+
+    /**
+     * 在打开已有文件时读入 PageOne, 并验证正确性
+     * @return
+     */
+    boolean loadCheckPageOne() {
+        try {
+            pageOne = pc.getPage(1);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return PageOne.checkvC(pageOne);
+    }
+
+    /**
+     * 初始化 pageIndex, 顺序扫描所有页面, 不挤占页面缓存
+     */
+    void fillPageIndex() {
+        int pageNumber = pc.getPageNumber();
+        for (int i = 2; i <= pageNumber; i++) {
+            Page pg = null;
+            try {
+                pg = pc.getPage(i, AccessHint.SEQUENTIAL);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
+            pg.release();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.wd.mydb.backend.dm;
+
+import com.wd.mydb.backend.common.SubArray;
+import com.wd.mydb.backend.dm.dataItem.DataItem;
+import com.wd.mydb.backend.dm.logger.Logger;
+import com.wd.mydb.backend.dm.page.Page;
+import com.wd.mydb.backend.dm.page.PageX;
+import com.wd.mydb.backend.dm.pageCache.PageCache;
+import com.wd.mydb.backend.tm.TransactionManager;
+import com.wd.mydb.backend.utils.Panic;
+import com.wd.mydb.backend.utils.Parser;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 崩溃恢复
+ *
+ * 日志格式:
+ * insertLog: [LogType] [XID] [Pgno] [Offset] [Raw]
+ * updateLog: [LogType] [XID] [UID] [OldRaw] [NewRaw]
+ * UID 的高 32 位为 Pgno, 低 16 位为 Offset
+ *
+ * 恢复流程:
+ * 1. 扫描一遍日志, 找到最大的页号, 截断其后的页面.
+ *    日志从检查点开始时, 检查点之前刷盘的页面可能没有出现在剩下的日志中, 不截断检查点记录的页数以内的页面
+ * 2. redo: 按日志顺序重做所有日志, 页面 LSN 已经不小于日志 LSN 的跳过
+ *
+ * redo 是并行的: 一个线程顺序解码日志, 按 pgno % N 分发给 N 个工作线程,
+ * 同一页面的日志总由同一个线程按日志顺序处理, 不同页面通过 PageCache 并行读取和修改.
+ *
+ * 没有 undo: 崩溃时没有提交的事务在 XID 预留段中已经读作 aborted, 打开后不会有 active 的事务,
+ * 它们的修改与运行时 abort 的事务一样留在页面上, 由可见性规则忽略.
+ * 也不能按未提交撤销: 运行时 abort 后, 其他事务可能已经修改了同一条记录, 撤销会覆盖这些修改.
+ */
+public class Recover {
+
+    private static final byte LOG_TYPE_INSERT = 0;
+    private static final byte LOG_TYPE_UPDATE = 1;
+
+    /**
+     * 每个工作线程的待处理队列长度
+     */
+    private static final int QUEUE_SIZE = 1024;
+
+    static class InsertLogInfo {
+        long xid;
+        int pgno;
+        short offset;
+        byte[] raw;
+    }
+
+    static class UpdateLogInfo {
+        long xid;
+        int pgno;
+        short offset;
+        byte[] oldRaw;
+        byte[] newRaw;
+    }
+
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+        recover(tm, lg, pc, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param workers 并行处理页面的线程数
+     */
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, int workers) {
+        lg.rewind();
+        int maxPgno = 0;
+        while (true) {
+            byte[] log = lg.next();
+            if (log == null) {
+                break;
+            }
+            int pgno;
+            if (isInsertLog(log)) {
+                pgno = parseInsertLog(log).pgno;
+            } else {
+                pgno = parseUpdateLog(log).pgno;
+            }
+            if (pgno > maxPgno) {
+                maxPgno = pgno;
+            }
+        }
+        maxPgno = Math.max(maxPgno, lg.checkpointPages());
+        if (maxPgno == 0) {
+            maxPgno = 1;
+        }
+        pc.truncateByPgno(maxPgno);
+
+        redoTransactions(lg, pc, workers);
+    }
+
+    private static void redoTransactions(Logger lg, PageCache pc, int workers) {
+        Worker[] ws = startWorkers(pc, workers);
+        lg.rewind();
+        while (true) {
+            byte[] log = lg.next();
+            if (log == null) {
+                break;
+            }
+            dispatch(ws, new Task(log, lg.getLastLSN()));
+        }
+        finish(ws);
+    }
+
+    private static Worker[] startWorkers(PageCache pc, int n) {
+        Worker[] ws = new Worker[Math.max(1, n)];
+        for (int i = 0; i < ws.length; i++) {
+            ws[i] = new Worker(pc, i);
+            ws[i].start();
+        }
+        return ws;
+    }
+
+    private static void dispatch(Worker[] ws, Task task) {
+        int pgno = pgnoOf(task.log);
+        try {
+            ws[pgno % ws.length].queue.put(task);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 通知工作线程日志已经分发完毕, 并等待它们处理完
+     */
+    private static void finish(Worker[] ws) {
+        try {
+            for (Worker w : ws) {
+                w.queue.put(Task.END);
+            }
+            for (Worker w : ws) {
+                w.join();
+            }
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private static int pgnoOf(byte[] log) {
+        return isInsertLog(log) ? parseInsertLog(log).pgno : parseUpdateLog(log).pgno;
+    }
+
+    /**
+     * 分发给工作线程的一条日志
+     */
+    private static class Task {
+        static final Task END = new Task(null, 0);
+
+        final byte[] log;
+        final long lsn;
+
+        Task(byte[] log, long lsn) {
+            this.log = log;
+            this.lsn = lsn;
+        }
+    }
+
+    /**
+     * 按日志顺序重做 pgno % N 相同的页面的工作线程
+     */
+    private static class Worker extends Thread {
+        private final PageCache pc;
+        private final BlockingQueue<Task> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+        Worker(PageCache pc, int id) {
+            super("mydb-recover-" + id);
+            this.pc = pc;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Task task = queue.take();
+                    if (task == Task.END) {
+                        break;
+                    }
+                    if (isInsertLog(task.log)) {
+                        doInsertLog(pc, task.log, task.lsn);
+                    } else {
+                        doUpdateLog(pc, task.log, task.lsn);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    private static boolean isInsertLog(byte[] log) {
+        return log[0] == LOG_TYPE_INSERT;
+    }
+
+    // [LogType] [XID] [UID] [OldRaw] [NewRaw]
+    private static final int OF_TYPE = 0;
+    private static final int OF_XID = OF_TYPE + 1;
+    private static final int OF_UPDATE_UID = OF_XID + 8;
+    private static final int OF_UPDATE_RAW = OF_UPDATE_UID + 8;
+
+    public static byte[] updateLog(long xid, DataItem di) {
+        SubArray raw = di.getRaw();
+        byte[] oldRaw = di.getOldRaw();
+        byte[] log = new byte[OF_UPDATE_RAW + oldRaw.length + (raw.end - raw.start)];
+        log[OF_TYPE] = LOG_TYPE_UPDATE;
+        Parser.putLong(log, OF_XID, xid);
+        Parser.putLong(log, OF_UPDATE_UID, di.getUid());
+        System.arraycopy(oldRaw, 0, log, OF_UPDATE_RAW, oldRaw.length);
+        System.arraycopy(raw.raw, raw.start, log, OF_UPDATE_RAW + oldRaw.length, raw.end - raw.start);
+        return log;
+    }
+
+    /**
+     * @param uid 高 32 位为 Pgno, 低 16 位为 Offset
+     */
+    public static byte[] updateLog(long xid, long uid, byte[] oldRaw, byte[] newRaw) {
+        byte[] log = new byte[OF_UPDATE_RAW + oldRaw.length + newRaw.length];
+        log[OF_TYPE] = LOG_TYPE_UPDATE;
+        Parser.putLong(log, OF_XID, xid);
+        Parser.putLong(log, OF_UPDATE_UID, uid);
+        System.arraycopy(oldRaw, 0, log, OF_UPDATE_RAW, oldRaw.length);
+        System.arraycopy(newRaw, 0, log, OF_UPDATE_RAW + oldRaw.length, newRaw.length);
+        return log;
+    }
+
+    private static UpdateLogInfo parseUpdateLog(byte[] log) {
+        UpdateLogInfo li = new UpdateLogInfo();
+        li.xid = Parser.getLong(log, OF_XID);
+        long uid = Parser.getLong(log, OF_UPDATE_UID);
+        li.offset = (short) (uid & ((1L << 16) - 1));
+        uid >>>= 32;
+        li.pgno = (int) (uid & ((1L << 32) - 1));
+        int length = (log.length - OF_UPDATE_RAW) / 2;
+        li.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW + length);
+        li.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW + length, OF_UPDATE_RAW + length * 2);
+        return li;
+    }
+
+    private static void doUpdateLog(PageCache pc, byte[] log, long lsn) {
+        UpdateLogInfo xi = parseUpdateLog(log);
+        Page pg = getPage(pc, xi.pgno);
+        try {
+            PageX.recoverUpdate(pg, xi.newRaw, xi.offset, lsn);
+        } finally {
+            pg.release();
+        }
+    }
+
+    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    private static final int OF_INSERT_PGNO = OF_XID + 8;
+    private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO + 4;
+    private static final int OF_INSERT_RAW = OF_INSERT_OFFSET + 2;
+
+    public static byte[] insertLog(long xid, Page pg, byte[] raw) {
+        byte[] log = new byte[OF_INSERT_RAW + raw.length];
+        log[OF_TYPE] = LOG_TYPE_INSERT;
+        Parser.putLong(log, OF_XID, xid);
+        Parser.putInt(log, OF_INSERT_PGNO, pg.getPageNumber());
+        Parser.putShort(log, OF_INSERT_OFFSET, PageX.getFSO(pg));
+        System.arraycopy(raw, 0, log, OF_INSERT_RAW, raw.length);
+        return log;
+    }
+
+    private static InsertLogInfo parseInsertLog(byte[] log) {
+        InsertLogInfo li = new InsertLogInfo();
+        li.xid = Parser.getLong(log, OF_XID);
+        li.pgno = Parser.getInt(log, OF_INSERT_PGNO);
+        li.offset = Parser.getShort(log, OF_INSERT_OFFSET);
+        li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+        return li;
+    }
+
+    private static void doInsertLog(PageCache pc, byte[] log, long lsn) {
+        InsertLogInfo li = parseInsertLog(log);
+        Page pg = getPage(pc, li.pgno);
+        try {
+            PageX.recoverInsert(pg, li.raw, li.offset, lsn);
+        } finally {
+            pg.release();
+        }
+    }
+
+    private static Page getPage(PageCache pc, int pgno) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return pg;
+    }
+}
@@ -0,0 +1,100 @@
+package com.wd.mydb.backend.dm.dataItem;
+
+import com.wd.mydb.backend.common.SubArray;
+import com.wd.mydb.backend.dm.DataManagerImpl;
+import com.wd.mydb.backend.dm.page.Page;
+import com.wd.mydb.backend.dm.page.PageTrailer;
+import com.wd.mydb.backend.dm.page.PageX;
+import com.wd.mydb.backend.utils.Parser;
+import com.wd.mydb.backend.utils.Types;
+
+import java.nio.ByteBuffer;
+
+/**
+ * DataItem 是 DM 层向上层提供的数据抽象
+ * 上层通过 data() 拿到的 SubArray 直接指向缓存中的页面, 不做拷贝
+ */
+public interface DataItem {
+
+    /**
+     * 数据部分, 与页面共享同一个数组
+     * @return
+     */
+    SubArray data();
+
+    /**
+     * 修改数据之前调用, 保存前相
+     */
+    void before();
+
+    /**
+     * 撤销修改, 恢复前相
+     */
+    void unBefore();
+
+    /**
+     * 修改完成后调用, 记录更新日志
+     * @param xid
+     */
+    void after(long xid);
+    void release();
+
+    void lock();
+    void unlock();
+    void rLock();
+    void rUnLock();
+
+    Page page();
+    long getUid();
+    byte[] getOldRaw();
+    SubArray getRaw();
+
+    static byte[] wrapDataItemRaw(byte[] raw) {
+        byte[] dataItem = new byte[DataItemImpl.OF_DATA + raw.length];
+        Parser.putShort(dataItem, DataItemImpl.OF_SIZE, (short) raw.length);
+        System.arraycopy(raw, 0, dataItem, DataItemImpl.OF_DATA, raw.length);
+        return dataItem;
+    }
+
+    /**
+     * 从页面的 offset 处解析出 DataItem, 页面数据必须在堆内数组中
+     * @param pg
+     * @param offset
+     * @param dm
+     * @return
+     */
+    static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
+        byte[] raw = pg.getData();
+        short size = Parser.getShort(raw, offset + DataItemImpl.OF_SIZE);
+        short length = (short) (size + DataItemImpl.OF_DATA);
+        long uid = Types.addressToUid(pg.getPageNumber(), offset);
+        return new DataItemImpl(new SubArray(raw, offset, offset + length), new byte[length], pg, uid, dm);
+    }
+
+    /**
+     * offset 处是否是一个完整的 DataItem: 从数据区开头逐个跳过 DataItem, 恰好落在 offset 上,
+     * 且整个 DataItem 都在 FSO 之内. 用于拒绝指向记录中间或空闲区的 UID
+     * @param pg
+     * @param offset
+     * @return
+     */
+    static boolean isDataItemAt(Page pg, int offset) {
+        ByteBuffer buf = pg.getBuffer();
+        int fso = PageX.getFSO(pg);
+        if (fso > PageTrailer.DATA_END) {
+            return false;
+        }
+        int of = PageX.OF_DATA;
+        while (of < offset && of + DataItemImpl.OF_DATA <= fso) {
+            of += DataItemImpl.OF_DATA + Short.toUnsignedInt(buf.getShort(of + DataItemImpl.OF_SIZE));
+        }
+        if (of != offset || of + DataItemImpl.OF_DATA > fso) {
+            return false;
+        }
+        return of + DataItemImpl.OF_DATA + Short.toUnsignedInt(buf.getShort(of + DataItemImpl.OF_SIZE)) <= fso;
+    }
+
+    static void setDataItemRawInvalid(byte[] raw) {
+        raw[DataItemImpl.OF_VALID] = (byte) 1;
+    }
+}
@@ -0,0 +1,119 @@
+package com.wd.mydb.backend.dm.dataItem;
+
+import com.wd.mydb.backend.common.SubArray;
+import com.wd.mydb.backend.dm.DataManagerImpl;
+import com.wd.mydb.backend.dm.page.Page;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * dataItem 结构如下:
+ * [ValidFlag] [DataSize] [Data]
+ * ValidFlag 1字节, 0为合法, 1为非法
+ * DataSize  2字节, 标识Data的长度
+ *
+ * raw 是页面数组上的一段, DataItem 在缓存中时一直持有所在页面的引用
+ */
+public class DataItemImpl implements DataItem {
+
+    static final int OF_VALID = 0;
+    static final int OF_SIZE = 1;
+    static final int OF_DATA = 3;
+
+    private SubArray raw;
+    private byte[] oldRaw;
+    private Lock rLock;
+    private Lock wLock;
+    private DataManagerImpl dm;
+    private long uid;
+    private Page pg;
+
+    public DataItemImpl(SubArray raw, byte[] oldRaw, Page pg, long uid, DataManagerImpl dm) {
+        this.raw = raw;
+        this.oldRaw = oldRaw;
+        ReadWriteLock lock = new ReentrantReadWriteLock();
+        rLock = lock.readLock();
+        wLock = lock.writeLock();
+        this.dm = dm;
+        this.uid = uid;
+        this.pg = pg;
+    }
+
+    public boolean isValid() {
+        return raw.raw[raw.start + OF_VALID] == (byte) 0;
+    }
+
+    @Override
+    public SubArray data() {
+        return new SubArray(raw.raw, raw.start + OF_DATA, raw.end);
+    }
+
+    @Override
+    public void before() {
+        wLock.lock();
+        pg.setDirty(true);
+        System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
+    }
+
+    @Override
+    public void unBefore() {
+        System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        pg.setDirty(true);
+        wLock.unlock();
+    }
+
+    @Override
+    public void after(long xid) {
+        // 修改完成后再标一次脏, 修改期间被 flushPage 清除的脏标记不会丢失
+        pg.setDirty(true);
+        dm.logDataItem(xid, this);
+        wLock.unlock();
+    }
+
+    @Override
+    public void release() {
+        dm.releaseDataItem(this);
+    }
+
+    @Override
+    public void lock() {
+        wLock.lock();
+    }
+
+    @Override
+    public void unlock() {
+        wLock.unlock();
+    }
+
+    @Override
+    public void rLock() {
+        rLock.lock();
+    }
+
+    @Override
+    public void rUnLock() {
+        rLock.unlock();
+    }
+
+    @Override
+    public Page page() {
+        return pg;
+    }
+
+    @Override
+    public long getUid() {
+        return uid;
+    }
+
+    @Override
+    public byte[] getOldRaw() {
+        return oldRaw;
+    }
+
+    @Override
+    public SubArray getRaw() {
+        return raw;
+    }
+}
@@ -0,0 +1,163 @@
+package com.wd.mydb.backend.dm.logger;
+
+import com.wd.mydb.backend.utils.Parser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+import static com.wd.mydb.backend.dm.logger.LoggerImpl.OF_CHECKSUM;
+import static com.wd.mydb.backend.dm.logger.LoggerImpl.OF_DATA;
+
+/**
+ * 并行校验 v2 格式的日志
+ *
+ * 读取线程顺序地按大块读入日志, 只沿 Size 字段找到块内最后一条完整日志的结尾,
+ * 每个块交给线程池计算 CRC32C 并累加校验和. v2 的 XCheckSum 是各条日志校验和之和,
+ * 与顺序无关, 因此各块的结果可以直接相加.
+ * 第一条校验失败或不完整的日志即为 BadTail 的开始, 之后的块全部丢弃.
+ */
+class LogVerifier {
+
+    private static final int BLOCK_SIZE = 4 << 20;
+
+    private final FileChannel fc;
+    private final long start;
+    private final long fileSize;
+    private final int parallelism;
+
+    LogVerifier(FileChannel fc, long start, long fileSize) {
+        this.fc = fc;
+        this.start = start;
+        this.fileSize = fileSize;
+        this.parallelism = Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 校验结果
+     * end 为最后一条正确日志的结尾, xCheck 为所有正确日志的校验和之和
+     */
+    static class Result {
+        final long end;
+        final int xCheck;
+
+        Result(long end, int xCheck) {
+            this.end = end;
+            this.xCheck = xCheck;
+        }
+    }
+
+    private static class Chunk {
+        final int sum;
+        final long end;
+        final boolean bad;
+
+        Chunk(int sum, long end, boolean bad) {
+            this.sum = sum;
+            this.end = end;
+            this.bad = bad;
+        }
+    }
+
+    Result verify() throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        ArrayDeque<Future<Chunk>> inflight = new ArrayDeque<>();
+        long end = start;
+        int xCheck = 0;
+        try {
+            long pos = start;
+            boolean stop = false;
+            while (!stop && pos < fileSize) {
+                int want = (int) Math.min(BLOCK_SIZE, fileSize - pos);
+                byte[] buf = read(pos, want);
+                int len = completeRecords(buf, want);
+                if (len == 0) {
+                    // 第一条日志比一个块还大, 单独读入
+                    int size = want >= OF_DATA ? Parser.parseInt(buf) : -1;
+                    if (size < 0 || pos + OF_DATA + size > fileSize) {
+                        break;
+                    }
+                    len = OF_DATA + size;
+                    buf = read(pos, len);
+                }
+                final byte[] block = buf;
+                final int blockLen = len;
+                final long blockPos = pos;
+                inflight.addLast(pool.submit(() -> check(block, blockLen, blockPos)));
+                pos += len;
+
+                // 限制同时在内存中的块数
+                while (inflight.size() > parallelism * 2) {
+                    Chunk c = inflight.pollFirst().get();
+                    xCheck += c.sum;
+                    end = c.end;
+                    if (c.bad) {
+                        stop = true;
+                        break;
+                    }
+                }
+            }
+            while (!stop && !inflight.isEmpty()) {
+                Chunk c = inflight.pollFirst().get();
+                xCheck += c.sum;
+                end = c.end;
+                stop = c.bad;
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        } finally {
+            pool.shutdownNow();
+        }
+        return new Result(end, xCheck);
+    }
+
+    private byte[] read(long pos, int len) throws IOException {
+        byte[] buf = new byte[len];
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        while (bb.hasRemaining()) {
+            if (fc.read(bb, pos + bb.position()) < 0) {
+                break;
+            }
+        }
+        return buf;
+    }
+
+    /**
+     * 块内完整日志的总长度
+     */
+    private static int completeRecords(byte[] buf, int len) {
+        int off = 0;
+        while (off + OF_DATA <= len) {
+            int size = Parser.getInt(buf, off);
+            if (size < 0 || off + OF_DATA + size > len) {
+                break;
+            }
+            off += OF_DATA + size;
+        }
+        return off;
+    }
+
+    private static Chunk check(byte[] buf, int len, long pos) {
+        CRC32C crc = new CRC32C();
+        int sum = 0;
+        int off = 0;
+        while (off < len) {
+            int size = Parser.getInt(buf, off);
+            crc.reset();
+            crc.update(buf, off + OF_DATA, size);
+            int checkSum = Parser.getInt(buf, off + OF_CHECKSUM);
+            if ((int) crc.getValue() != checkSum) {
+                return new Chunk(sum, pos + off, true);
+            }
+            sum += checkSum;
+            off += OF_DATA + size;
+        }
+        return new Chunk(sum, pos + len, false);
+    }
+}
@@ -1,7 +1,7 @@
 package com.wd.mydb.backend.dm.logger;
 
+import com.wd.mydb.backend.common.SubArray;
 import com.wd.mydb.backend.utils.Panic;
-import com.wd.mydb.backend.utils.Parser;
 import com.wd.mydb.common.Error;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -11,16 +11,64 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
 
 import static com.wd.mydb.backend.dm.logger.LoggerImpl.LOG_SUFFIX;
 
 public interface Logger {
     
-    void log(byte[] data);
+    /**
+     * 写入一条日志, 返回时日志已经 force 到磁盘
+     * @param data
+     * @return 该日志的 LSN, 随写入顺序单调递增, 且总大于 0
+     */
+    long log(byte[] data);
     void truncate(long x) throws Exception;
     byte[] next();
+
+    /**
+     * 与 next() 相同, 但直接返回预读缓冲区中的切片, 不做拷贝
+     * 切片只在下一次 next()/nextSlice()/rewind() 之前有效, 调用方需要保留时自行拷贝
+     * @return 下一条日志的 Data, 没有时返回 null
+     */
+    SubArray nextSlice();
+
+    /**
+     * 最近一次 next()/nextSlice() 读到的日志的 LSN, 与 log() 的返回值一致
+     * @return
+     */
+    long getLastLSN();
     void rewind();
     void close();
+
+    /**
+     * 组提交的等待窗口: 批次的 leader 在写入前最多等待这么久, 让更多并发日志加入同一次 force
+     * 默认为 0
+     * @param window
+     * @param unit
+     */
+    void setGroupCommitWindow(long window, TimeUnit unit);
+
+    /**
+     * 检查点: 之后的恢复从这里开始, 之前的日志可以丢弃
+     * 先确定检查点的位置, 再调用 flushPages 把这之前的日志对应的页面刷盘, 最后持久化检查点.
+     * 恢复只重做日志, 崩溃时未提交的事务读作 aborted, 因此不要求没有跨越检查点的活跃事务
+     * @param flushPages 刷盘所有页面, 返回此时的数据页数, 随检查点一起持久化, 恢复时不会截断这些页面
+     */
+    void checkpoint(IntSupplier flushPages);
+
+    /**
+     * 最近一个检查点记录的数据页数, 恢复从日志开头开始时为 0
+     * @return
+     */
+    int checkpointPages();
+
+    /**
+     * 最近一个检查点之后写入的日志长度, 即下一个检查点可以丢弃的日志量
+     * @return
+     */
+    long lengthSinceCheckpoint();
     
     static Logger create(String path) {
         File f = new File(path + LOG_SUFFIX);
@@ -44,7 +92,7 @@ public interface Logger {
             Panic.panic(e);
         }
 
-        ByteBuf buf = Unpooled.wrappedBuffer(Parser.int2Byte(0));
+        ByteBuf buf = Unpooled.wrappedBuffer(LoggerImpl.initHeader());
         try {
             fc.position(0);
             fc.write(buf.nioBuffer());
@@ -56,6 +104,26 @@ public interface Logger {
         return new LoggerImpl(raf, fc, 0);
     }
     
+    /**
+     * 创建分段日志, 每个段是一个独立的日志文件, 写满 segmentSize 后滚动到下一个段
+     * @param path
+     * @param segmentSize
+     * @return
+     */
+    static SegmentedLogger createSegmented(String path, long segmentSize) {
+        return SegmentedLogger.create(path, segmentSize);
+    }
+
+    /**
+     * 打开分段日志, 只校验最近一个检查点之后的段
+     * @param path
+     * @param segmentSize
+     * @return
+     */
+    static SegmentedLogger openSegmented(String path, long segmentSize) {
+        return SegmentedLogger.open(path, segmentSize);
+    }
+    
     static Logger open(String path) {
         File f = new File(path + LOG_SUFFIX);
         if (!f.exists()) {
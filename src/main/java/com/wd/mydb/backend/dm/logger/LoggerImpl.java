@@ -1,39 +1,66 @@
 package com.wd.mydb.backend.dm.logger;
 
 import com.google.common.primitives.Bytes;
+import com.wd.mydb.backend.common.SubArray;
 import com.wd.mydb.backend.utils.Panic;
 import com.wd.mydb.backend.utils.Parser;
 import com.wd.mydb.common.Error;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+import java.util.zip.CRC32C;
 
 /**
  * 日志文件读写
  * 
- * 日志文件标准格式为:
- * [XCheckSum] [Log1] [Log2] ... [LogN] [BadTail]
- * XCheckSum 为后续所有日志计算的 CheckSum, int 类型
+ * 日志文件标准格式为 (v2):
+ * [Magic] [Version] [XCheckSum] [Log1] [Log2] ... [LogN] [BadTail]
+ * Magic, Version 各 4 字节
+ * XCheckSum 为后续所有日志 CheckSum 之和, int 类型, 与日志顺序无关, 可以分块并行校验
  * 
  * 每条正确日志的格式为:
  * [Size] [CheckSum] [Data]
  * Size 4 字节 int, 标识 Data 长度
- * CheckSum 4 字节 int
+ * CheckSum 4 字节 int, 为 Data 的 CRC32C
+ *
+ * 旧格式 (v1) 仍可读写:
+ * [XCheckSum] [Log1] [Log2] ... [LogN] [BadTail]
+ * 单条日志的 CheckSum 与 XCheckSum 都是逐字节的乘加链, 只能顺序校验
+ *
+ * 写日志采用组提交: 并发的 log() 调用先把日志放入同一个批次,
+ * 由其中一个线程 (leader) 把整批日志一次写入文件, 只更新一次 XCheckSum 并只 force 一次,
+ * 然后唤醒批次中的所有调用方.
+ *
+ * 日志的 LSN 为它在文件中的起始偏移.
  */
 public class LoggerImpl implements Logger {
     
     private static final int SEED = 13331;
     
-    private static final int OF_SIZE = 0;
-    private static final int OF_CHECKSUM = OF_SIZE + 4;
-    private static final int OF_DATA = OF_CHECKSUM + 4;
+    static final int OF_SIZE = 0;
+    static final int OF_CHECKSUM = OF_SIZE + 4;
+    static final int OF_DATA = OF_CHECKSUM + 4;
+
+    /**
+     * v2 文件头, "MYLG"
+     */
+    static final int MAGIC = 0x4D594C47;
+    static final int VERSION_1 = 1;
+    static final int VERSION_2 = 2;
+    private static final int HEADER_LENGTH_V1 = 4;
+    private static final int HEADER_LENGTH_V2 = 12;
     
     public static final String LOG_SUFFIX = ".log";
     
@@ -50,20 +77,92 @@ public class LoggerImpl implements Logger {
      * 初始化时记录, log操作不更新
      */
     private long fileSize;
+
+    /**
+     * 顺序读日志用的预读缓冲区, 保存文件中 [bufStart, bufStart + bufLen) 的内容
+     * 只在持有 lock 时访问
+     */
+    private static final int READ_AHEAD = 1 << 20;
+    private byte[] readBuf;
+    private long bufStart;
+    private int bufLen;
+
+    /**
+     * internNext 与 nextSlice 复用的切片, 指向 readBuf 内部
+     */
+    private final SubArray record = new SubArray(null, 0, 0);
+    private final SubArray data = new SubArray(null, 0, 0);
     
     private int xCheckSum;
 
+    /**
+     * 日志文件格式版本, 决定文件头长度与校验和算法
+     */
+    private int version;
+    private int headerLength;
+
+    /**
+     * 组提交状态, 只在持有 commitLock 时访问
+     * appendSeq 为最后一条进入批次的日志序号, durableSeq 为已经 force 的最大序号
+     */
+    private final Lock commitLock = new ReentrantLock();
+    private final Condition durable = commitLock.newCondition();
+    private final Condition window = commitLock.newCondition();
+    private List<byte[]> pending = new ArrayList<>();
+    private long appendSeq;
+    private long durableSeq;
+    private boolean flushing;
+
+    /**
+     * 下一条日志在文件中的偏移, 只在持有 commitLock 时访问
+     * 批次总是按进入的顺序追加到文件末尾, 因此可以在进入批次时确定每条日志的 LSN
+     */
+    private long nextOffset;
+
+    /**
+     * 最近一次读到的日志的起始偏移
+     */
+    private long lastPosition;
+
+    /**
+     * leader 在取走批次前等待的时间, 为 0 时立即写入,
+     * 此时在上一批 force 期间到达的日志自然组成下一批
+     */
+    private volatile long groupCommitWindowNanos;
+
     public LoggerImpl(RandomAccessFile raf, FileChannel fc) {
         this.raf = raf;
         this.fc = fc;
         lock = new ReentrantLock();
     }
 
+    /**
+     * 用于新建的日志文件, 文件头由 initHeader() 写入
+     */
     public LoggerImpl(RandomAccessFile raf, FileChannel fc, int xCheckSum) {
         this.raf = raf;
         this.fc = fc;
         this.xCheckSum = xCheckSum;
         lock = new ReentrantLock();
+        setVersion(VERSION_2);
+        this.nextOffset = headerLength;
+        rewind();
+    }
+
+    /**
+     * 新建日志文件的文件头
+     * @return
+     */
+    static byte[] initHeader() {
+        byte[] header = new byte[HEADER_LENGTH_V2];
+        Parser.putInt(header, 0, MAGIC);
+        Parser.putInt(header, 4, VERSION_2);
+        return header;
+    }
+
+    private void setVersion(int version) {
+        this.version = version;
+        this.headerLength = version == VERSION_2 ? HEADER_LENGTH_V2 : HEADER_LENGTH_V1;
     }
     
     void init() {
@@ -73,73 +172,213 @@ public class LoggerImpl implements Logger {
         } catch (IOException e) {
             Panic.panic(e);
         }
-        if (size < 4) {
+        if (size < HEADER_LENGTH_V1) {
             Panic.panic(Error.BadLogFileException);
         }
         
-        ByteBuf raw = ByteBufAllocator.DEFAULT.buffer(4);
+        ByteBuffer raw = ByteBuffer.allocate(HEADER_LENGTH_V2);
         try {
-            fc.position(0);
-            fc.read(raw.nioBuffer());
+            while (raw.hasRemaining() && fc.read(raw, raw.position()) >= 0) {
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
-        int xCheckSum = Parser.parseInt(raw.array());
+        byte[] header = raw.array();
+        if (size >= HEADER_LENGTH_V2 && Parser.getInt(header, 0) == MAGIC
+                && Parser.getInt(header, 4) == VERSION_2) {
+            setVersion(VERSION_2);
+            this.xCheckSum = Parser.getInt(header, 8);
+        } else {
+            setVersion(VERSION_1);
+            this.xCheckSum = Parser.getInt(header, 0);
+        }
         this.fileSize = size;
-        this.xCheckSum = xCheckSum;
         
         checkAndRemoveTail();
+        this.nextOffset = fileSize;
     }
 
     /**
      * 向日志文件写入日志时, 也是首先将数据包裹成日志格式, 
      * 写入文件后, 再更新文件的校验和, 
      * 更新校验和时, 会刷新缓冲区, 保证内容写入磁盘
+     * 返回时该日志一定已经 force 到磁盘
      * @param data
      */
     @Override
-    public void log(byte[] data) {
+    public long log(byte[] data) {
         byte[] log = wrapLog(data);
-        ByteBuf buf = Unpooled.wrappedBuffer(log);
+        long lsn = 0;
+        commitLock.lock();
+        try {
+            pending.add(log);
+            lsn = nextOffset;
+            nextOffset += log.length;
+            long seq = ++appendSeq;
+            while (durableSeq < seq) {
+                if (flushing) {
+                    durable.awaitUninterruptibly();
+                    continue;
+                }
+                // 成为 leader, 负责写出当前批次
+                flushing = true;
+                long wait = groupCommitWindowNanos;
+                while (wait > 0) {
+                    wait = window.awaitNanos(wait);
+                }
+                List<byte[]> batch = pending;
+                long batchSeq = appendSeq;
+                pending = new ArrayList<>();
+                commitLock.unlock();
+                try {
+                    writeBatch(batch);
+                } finally {
+                    commitLock.lock();
+                    durableSeq = batchSeq;
+                    flushing = false;
+                    durable.signalAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        } finally {
+            commitLock.unlock();
+        }
+        return lsn;
+    }
+
+    /**
+     * 把一批日志拼成一次连续写入文件末尾, 再更新一次 XCheckSum 并 force
+     * @param batch
+     */
+    private void writeBatch(List<byte[]> batch) {
+        byte[] logs = batch.size() == 1 ? batch.get(0) : Bytes.concat(batch.toArray(new byte[0][]));
+        ByteBuf buf = Unpooled.wrappedBuffer(logs);
         lock.lock();
         try {
             fc.position(fc.size());
             fc.write(buf.nioBuffer());
+            if (version == VERSION_2) {
+                int sum = 0;
+                for (byte[] log : batch) {
+                    sum += Parser.getInt(log, OF_CHECKSUM);
+                }
+                updateXCheckSum(xCheckSum + sum);
+            } else {
+                updateXCheckSum(calCheckSum(xCheckSum, logs));
+            }
         } catch (IOException e) {
             Panic.panic(e);
         } finally {
             lock.unlock();
         }
-        updateXCheckSum(log);
     }
 
+    @Override
+    public void setGroupCommitWindow(long window, TimeUnit unit) {
+        this.groupCommitWindowNanos = unit.toNanos(window);
+    }
+
+    /**
+     * 截断到 position, 并按剩余的日志重新计算 XCheckSum, 截断后的文件可以正常打开
+     * @param position
+     * @throws IOException
+     */
     @Override
     public void truncate(long position) throws IOException {
+        commitLock.lock();
         lock.lock();
         try {
-            fc.truncate(position);
+            truncateFile(Math.max(position, headerLength));
+            fileSize = fc.size();
+            rewind();
+            updateXCheckSum(scanCheckSum());
+            nextOffset = fc.size();
+            rewind();
         } finally {
             lock.unlock();
+            commitLock.unlock();
         }
     }
 
+    /**
+     * 单文件日志没有可以丢弃的旧日志, 恢复总是从文件头开始
+     */
+    @Override
+    public void checkpoint(IntSupplier flushPages) {
+    }
+
+    @Override
+    public int checkpointPages() {
+        return 0;
+    }
+
+    /**
+     * 单文件日志不能丢弃日志, 检查点总是无事可做
+     * @return
+     */
+    @Override
+    public long lengthSinceCheckpoint() {
+        return 0;
+    }
+
+    /**
+     * 当前文件长度, 包括还没有被 next() 读到的新日志
+     * @return
+     */
+    long length() {
+        try {
+            return fc.size();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return 0;
+    }
+
+    private void truncateFile(long position) throws IOException {
+        fc.truncate(position);
+        bufLen = 0;
+    }
+
     @Override
     public byte[] next() {
         lock.lock();
         try {
-            byte[] log = internNext();
+            SubArray log = internNext();
+            if (log == null) {
+                return null;
+            }
+            return Arrays.copyOfRange(log.raw, log.start + OF_DATA, log.end);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public SubArray nextSlice() {
+        lock.lock();
+        try {
+            SubArray log = internNext();
             if (log == null) {
                 return null;
             }
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
+            data.raw = log.raw;
+            data.start = log.start + OF_DATA;
+            data.end = log.end;
+            return data;
         } finally {
             lock.unlock();
         }
     }
 
+    @Override
+    public long getLastLSN() {
+        return lastPosition;
+    }
+
     @Override
     public void rewind() {
-        position = 4;
+        position = headerLength;
     }
 
     @Override
@@ -159,22 +398,14 @@ public class LoggerImpl implements Logger {
      */
     private void checkAndRemoveTail() {
         rewind();
-        
-        int xCheck = 0;
-        while (true) {
-            byte[] log = internNext();
-            if (log == null) {
-                break;
-            }
-            xCheck = calCheckSum(xCheck, log);
-        }
+        int xCheck = scanCheckSum();
         if (xCheck != xCheckSum) {
             Panic.panic(Error.BadLogFileException);
         }
 
         try {
             // 截断文件到正常日志的末尾
-            truncate(position);
+            truncateFile(position);
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -183,8 +414,35 @@ public class LoggerImpl implements Logger {
         } catch (IOException e) {
             Panic.panic(e);
         }
+        fileSize = position;
         rewind();
     }
+
+    /**
+     * 从 position 开始扫描到 fileSize, 返回所有正确日志的校验和, position 停在最后一条正确日志的结尾
+     * @return
+     */
+    private int scanCheckSum() {
+        int xCheck = 0;
+        if (version == VERSION_2) {
+            try {
+                LogVerifier.Result res = new LogVerifier(fc, position, fileSize).verify();
+                xCheck = res.xCheck;
+                position = res.end;
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        } else {
+            while (true) {
+                SubArray log = internNext();
+                if (log == null) {
+                    break;
+                }
+                xCheck = calCheckSum(xCheck, log.raw, log.start, log.end - log.start);
+            }
+        }
+        return xCheck;
+    }
     
     /**
      * 单条日志的校验和, 通过一个指定的种子实现
@@ -194,12 +452,32 @@ public class LoggerImpl implements Logger {
      * @return
      */
     private int calCheckSum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
+        return calCheckSum(xCheck, log, 0, log.length);
+    }
+
+    private int calCheckSum(int xCheck, byte[] log, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            xCheck = xCheck * SEED + log[i];
         }
         return xCheck;
     }
 
+    /**
+     * 单条日志 Data 部分的校验和, 由文件版本决定算法
+     * @param data
+     * @param off
+     * @param len
+     * @return
+     */
+    private int recordCheckSum(byte[] data, int off, int len) {
+        if (version == VERSION_2) {
+            CRC32C crc = new CRC32C();
+            crc.update(data, off, len);
+            return (int) crc.getValue();
+        }
+        return calCheckSum(0, data, off, len);
+    }
+
     /**
      * Logger 被实现成迭代器模式, 通过 next() 方法, 
      * 不断从文件中读取下一条日志, 并将其中的 Data 解析出来并返回. 
@@ -207,49 +485,79 @@ public class LoggerImpl implements Logger {
      * 其中 position 是当前日志文件读到的位置偏移.
      * @return
      */
-    private byte[] internNext() {
-        if (position + OF_DATA >= fileSize) {
+    private SubArray internNext() {
+        if (position + OF_DATA > fileSize) {
             return null;
         }
         
         // 读取 size
-        ByteBuf tmp = ByteBufAllocator.DEFAULT.buffer(4);
-        try {
-            fc.position(position);
-            fc.read(tmp.nioBuffer());
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        int size = Parser.parseInt(tmp.array());
-        if (position + size + OF_DATA >= fileSize) {
+        int off = fill(position, OF_DATA);
+        int size = Parser.getInt(readBuf, off);
+        if (size < 0 || position + size + OF_DATA > fileSize) {
             return null;
         }
         
-        // 读取 checkSum + data
-        ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(OF_DATA + size);
-        try {
-            fc.position(position);
-            fc.read(buf.nioBuffer());
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        
-        byte[] log = buf.array();
+        // checkSum + data 一般已经在预读缓冲区中
+        off = fill(position, OF_DATA + size);
         
         // 校验 checkSum
-        int checkSum1 = calCheckSum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
+        int checkSum1 = recordCheckSum(readBuf, off + OF_DATA, size);
+        int checkSum2 = Parser.getInt(readBuf, off + OF_CHECKSUM);
         if (checkSum1 != checkSum2) {
             return null;
         }
-        position += log.length;
-        return log;
+        lastPosition = position;
+        position += OF_DATA + size;
+        record.raw = readBuf;
+        record.start = off;
+        record.end = off + OF_DATA + size;
+        return record;
     }
 
-    private void updateXCheckSum(byte[] log) {
-        this.xCheckSum = calCheckSum(this.xCheckSum, log);
+    /**
+     * 保证文件中 [pos, pos + len) 的内容在预读缓冲区中, 返回其在 readBuf 中的起始下标
+     * 不命中时从 pos 开始一次读满整个缓冲区, 单条日志比缓冲区大时扩大缓冲区
+     * @param pos
+     * @param len
+     * @return
+     */
+    private int fill(long pos, int len) {
+        if (readBuf != null && pos >= bufStart && pos + len <= bufStart + bufLen) {
+            return (int) (pos - bufStart);
+        }
+        if (readBuf == null || readBuf.length < len) {
+            readBuf = new byte[Math.max(READ_AHEAD, len)];
+        }
+        int want = (int) Math.min(readBuf.length, fileSize - pos);
+        ByteBuffer buf = ByteBuffer.wrap(readBuf, 0, want);
+        readFully(buf, pos);
+        bufStart = pos;
+        bufLen = buf.position();
+        return 0;
+    }
+
+    private void readFully(ByteBuffer buf, long offset) {
+        try {
+            while (buf.hasRemaining()) {
+                if (fc.read(buf, offset + buf.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 写入新的 XCheckSum 并 force
+     * v1 的 XCheckSum 是逐字节链式计算的, 对一批日志拼接后的结果计算等价于逐条计算;
+     * v2 的 XCheckSum 是各条日志校验和之和
+     * @param xCheckSum
+     */
+    private void updateXCheckSum(int xCheckSum) {
+        this.xCheckSum = xCheckSum;
         try {
-            fc.position(0);
+            fc.position(headerLength - 4);
             fc.write(Unpooled.wrappedBuffer(Parser.int2Byte(xCheckSum)).nioBuffer());
             fc.force(false);
         } catch (IOException e) {
@@ -258,9 +566,11 @@ public class LoggerImpl implements Logger {
     }
 
     private byte[] wrapLog(byte[] data) {
-        byte[] checkSum = Parser.int2Byte(calCheckSum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checkSum, data);
+        byte[] log = new byte[OF_DATA + data.length];
+        Parser.putInt(log, OF_SIZE, data.length);
+        Parser.putInt(log, OF_CHECKSUM, recordCheckSum(data, 0, data.length));
+        System.arraycopy(data, 0, log, OF_DATA, data.length);
+        return log;
     }
 
 }
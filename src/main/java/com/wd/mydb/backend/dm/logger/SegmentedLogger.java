@@ -0,0 +1,548 @@
+package com.wd.mydb.backend.dm.logger;
+
+import com.wd.mydb.backend.common.SubArray;
+import com.wd.mydb.backend.utils.Panic;
+import com.wd.mydb.backend.utils.Parser;
+import com.wd.mydb.common.Error;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntSupplier;
+import java.util.zip.CRC32C;
+
+import static com.wd.mydb.backend.dm.logger.LoggerImpl.LOG_SUFFIX;
+
+/**
+ * 分段日志
+ *
+ * 日志由若干段组成, 第 n 段的文件为 path.0000000n.log, 每段都是一个完整的 v2 日志文件,
+ * 有自己的文件头和 XCheckSum. 当前段写满 segmentSize 后, 新的日志写入下一段.
+ *
+ * 检查点文件 path.ckpt 的格式为:
+ * [SegNo] [Pages] [CheckSum]
+ * SegNo 8 字节 long, 恢复开始的段号; Pages 4 字节 int, 检查点时已经刷盘的数据页数;
+ * CheckSum 4 字节 int, 为前 12 字节的 CRC32C
+ * 检查点先滚动到一个新段, 再等调用方把之前的日志对应的页面刷盘, 最后写入检查点文件,
+ * 因此恢复总是从某个段的开头开始, 检查点之前的段在写入检查点后被删除或移入归档目录.
+ * 检查点文件与新段都先写临时文件再改名, 打开时删除崩溃留下的临时文件.
+ * 打开时只校验检查点之后的段, 启动时间只与最近一个检查点之后写入的日志量有关.
+ *
+ * 跨段的位置用 LSN 表示: 高 32 位为段号, 低 32 位为段内偏移
+ */
+public class SegmentedLogger implements Logger {
+
+    public static final String CKPT_SUFFIX = ".ckpt";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+
+    private static final int OF_CKPT_SEG_NO = 0;
+    private static final int OF_CKPT_PAGES = OF_CKPT_SEG_NO + 8;
+    private static final int OF_CKPT_CHECKSUM = OF_CKPT_PAGES + 4;
+    private static final int CKPT_LENGTH = OF_CKPT_CHECKSUM + 4;
+
+    /**
+     * 段内偏移只有 32 位
+     */
+    private static final long MAX_SEGMENT_SIZE = 1L << 31;
+
+    private final String path;
+    private final long segmentSize;
+
+    /**
+     * 检查点之后的所有段, 按段号排序
+     */
+    private final ConcurrentSkipListMap<Long, LoggerImpl> segments = new ConcurrentSkipListMap<>();
+
+    /**
+     * 正在写入的段
+     * log() 持有读锁, 滚动, 检查点与截断持有写锁, 保证日志不会写入正在被删除的段
+     */
+    private volatile LoggerImpl active;
+    private volatile long activeNo;
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+
+    /**
+     * next() 读到的段号, 只在持有 readLock 时访问
+     */
+    private long readNo;
+    private final Lock readLock = new ReentrantLock();
+
+    private volatile long groupCommitWindowNanos;
+
+    /**
+     * 旧段的归档目录, 为 null 时直接删除
+     */
+    private volatile File archiveDir;
+
+    /**
+     * 最近一个检查点记录的数据页数
+     */
+    private volatile int checkpointPages;
+
+    /**
+     * 串行化检查点
+     */
+    private final Lock checkpointLock = new ReentrantLock();
+
+    private SegmentedLogger(String path, long segmentSize) {
+        this.path = path;
+        this.segmentSize = Math.min(Math.max(segmentSize, 1), MAX_SEGMENT_SIZE);
+    }
+
+    static SegmentedLogger create(String path, long segmentSize) {
+        File ckpt = new File(path + CKPT_SUFFIX);
+        if (ckpt.exists() || new File(segmentPath(path, 1) + LOG_SUFFIX).exists()) {
+            Panic.panic(Error.FileExistsException);
+        }
+        SegmentedLogger lg = new SegmentedLogger(path, segmentSize);
+        lg.addSegment(1, createSegment(path, 1));
+        lg.writeCheckpoint(1, 0);
+        lg.rewind();
+        return lg;
+    }
+
+    static SegmentedLogger open(String path, long segmentSize) {
+        File ckpt = new File(path + CKPT_SUFFIX);
+        if (!ckpt.exists()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+        SegmentedLogger lg = new SegmentedLogger(path, segmentSize);
+        lg.removeTempFiles();
+        long start = lg.readCheckpoint();
+
+        // 写入检查点后, 删除旧段之前崩溃时, 旧段可能还在
+        long[] nos = lg.listSegments();
+        for (int i = 0; i < nos.length; i++) {
+            long no = nos[i];
+            if (no < start) {
+                lg.retire(no);
+            } else if (i == nos.length - 1 && isTorn(path, no)) {
+                // 连文件头都没有写完的最后一段不含任何日志, 直接丢弃
+                try {
+                    Files.delete(new File(segmentPath(path, no) + LOG_SUFFIX).toPath());
+                } catch (IOException e) {
+                    Panic.panic(e);
+                }
+            } else {
+                lg.addSegment(no, (LoggerImpl) Logger.open(segmentPath(path, no)));
+            }
+        }
+        if (lg.segments.isEmpty()) {
+            lg.addSegment(start, createSegment(path, start));
+        }
+        lg.rewind();
+        return lg;
+    }
+
+    /**
+     * 设置旧段的归档目录, 为 null 时检查点之前的段被直接删除
+     * @param dir
+     */
+    public void setArchiveDirectory(File dir) {
+        this.archiveDir = dir;
+    }
+
+    public static long lsn(long segNo, long offset) {
+        return (segNo << 32) | offset;
+    }
+
+    /**
+     * 当前写入位置的 LSN
+     * @return
+     */
+    public long currentLsn() {
+        segmentLock.readLock().lock();
+        try {
+            return lsn(activeNo, active.length());
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long log(byte[] data) {
+        LoggerImpl seg;
+        long lsn;
+        segmentLock.readLock().lock();
+        try {
+            seg = active;
+            lsn = lsn(activeNo, seg.log(data));
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+        if (seg.length() >= segmentSize) {
+            segmentLock.writeLock().lock();
+            try {
+                if (active == seg) {
+                    roll();
+                }
+            } finally {
+                segmentLock.writeLock().unlock();
+            }
+        }
+        return lsn;
+    }
+
+    /**
+     * 截断到 lsn 所在的位置, lsn 之后的段被删除, 新的日志从该位置继续写入
+     * @param lsn
+     * @throws Exception
+     */
+    @Override
+    public void truncate(long lsn) throws Exception {
+        long no = lsn >>> 32;
+        long offset = lsn & 0xFFFFFFFFL;
+        segmentLock.writeLock().lock();
+        try {
+            LoggerImpl seg = segments.get(no);
+            if (seg == null) {
+                throw Error.BadLogFileException;
+            }
+            for (long later : segments.tailMap(no, false).keySet()) {
+                segments.remove(later).close();
+                Files.deleteIfExists(new File(segmentPath(path, later) + LOG_SUFFIX).toPath());
+            }
+            seg.truncate(offset);
+            active = seg;
+            activeNo = no;
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+        rewind();
+    }
+
+    @Override
+    public byte[] next() {
+        readLock.lock();
+        try {
+            while (true) {
+                LoggerImpl seg = segments.get(readNo);
+                if (seg == null) {
+                    return null;
+                }
+                byte[] log = seg.next();
+                if (log != null || !advance()) {
+                    return log;
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public SubArray nextSlice() {
+        readLock.lock();
+        try {
+            while (true) {
+                LoggerImpl seg = segments.get(readNo);
+                if (seg == null) {
+                    return null;
+                }
+                SubArray log = seg.nextSlice();
+                if (log != null || !advance()) {
+                    return log;
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public long getLastLSN() {
+        readLock.lock();
+        try {
+            LoggerImpl seg = segments.get(readNo);
+            return seg == null ? 0 : lsn(readNo, seg.getLastLSN());
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * 回到最近一个检查点所在段的开头
+     */
+    @Override
+    public void rewind() {
+        readLock.lock();
+        try {
+            Long first = segments.isEmpty() ? null : segments.firstKey();
+            readNo = first == null ? 0 : first;
+            if (first != null) {
+                segments.get(first).rewind();
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        segmentLock.writeLock().lock();
+        try {
+            for (LoggerImpl seg : segments.values()) {
+                seg.close();
+            }
+            segments.clear();
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void setGroupCommitWindow(long window, TimeUnit unit) {
+        this.groupCommitWindowNanos = unit.toNanos(window);
+        for (LoggerImpl seg : segments.values()) {
+            seg.setGroupCommitWindow(window, unit);
+        }
+    }
+
+    /**
+     * 滚动到新段, 在写锁之外等 flushPages 刷盘, 再把新段记为检查点, 然后删除或归档之前的所有段
+     * 刷盘期间日志继续写入新段
+     */
+    @Override
+    public void checkpoint(IntSupplier flushPages) {
+        checkpointLock.lock();
+        try {
+            long start;
+            segmentLock.writeLock().lock();
+            try {
+                roll();
+                start = activeNo;
+            } finally {
+                segmentLock.writeLock().unlock();
+            }
+
+            int pages = flushPages.getAsInt();
+
+            segmentLock.writeLock().lock();
+            try {
+                writeCheckpoint(start, pages);
+                for (long no : segments.headMap(start, false).keySet()) {
+                    segments.remove(no).close();
+                    retire(no);
+                }
+            } finally {
+                segmentLock.writeLock().unlock();
+            }
+        } finally {
+            checkpointLock.unlock();
+        }
+        rewind();
+    }
+
+    @Override
+    public int checkpointPages() {
+        return checkpointPages;
+    }
+
+    @Override
+    public long lengthSinceCheckpoint() {
+        long length = 0;
+        for (LoggerImpl seg : segments.values()) {
+            length += seg.length();
+        }
+        return length;
+    }
+
+    /**
+     * 当前段已经读完, 移动到下一段的开头
+     * @return 是否还有下一段
+     */
+    private boolean advance() {
+        Map.Entry<Long, LoggerImpl> next = segments.higherEntry(readNo);
+        if (next == null) {
+            return false;
+        }
+        readNo = next.getKey();
+        next.getValue().rewind();
+        return true;
+    }
+
+    /**
+     * 新建下一段并开始写入, 调用方持有写锁
+     */
+    private void roll() {
+        long no = activeNo + 1;
+        addSegment(no, createSegment(path, no));
+    }
+
+    /**
+     * 先把文件头写入临时文件并 force, 再原子地改名为段文件,
+     * 崩溃时目录中要么没有这一段, 要么是一个有完整文件头的空段
+     * @param path
+     * @param no
+     * @return
+     */
+    private static LoggerImpl createSegment(String path, long no) {
+        File f = new File(segmentPath(path, no) + LOG_SUFFIX);
+        if (f.exists()) {
+            Panic.panic(Error.FileExistsException);
+        }
+        File tmp = new File(f.getPath() + TMP_SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.setLength(0);
+            raf.write(LoggerImpl.initHeader());
+            raf.getChannel().force(true);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        try {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return (LoggerImpl) Logger.open(segmentPath(path, no));
+    }
+
+    /**
+     * 旧版本直接创建段文件再写文件头, 在两步之间崩溃会留下不完整的段
+     * @param path
+     * @param no
+     * @return
+     */
+    private static boolean isTorn(String path, long no) {
+        return new File(segmentPath(path, no) + LOG_SUFFIX).length() < LoggerImpl.initHeader().length;
+    }
+
+    private void addSegment(long no, LoggerImpl seg) {
+        seg.setGroupCommitWindow(groupCommitWindowNanos, TimeUnit.NANOSECONDS);
+        segments.put(no, seg);
+        if (no >= activeNo) {
+            active = seg;
+            activeNo = no;
+        }
+    }
+
+    /**
+     * 删除或归档一个已经关闭的旧段
+     * @param no
+     */
+    private void retire(long no) {
+        File f = new File(segmentPath(path, no) + LOG_SUFFIX);
+        try {
+            File dir = archiveDir;
+            if (dir != null) {
+                Files.move(f.toPath(), new File(dir, f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(f.toPath());
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 先写临时文件并 force, 再原子地替换检查点文件, 崩溃时检查点要么是旧的要么是新的
+     * @param segNo
+     */
+    private void writeCheckpoint(long segNo, int pages) {
+        byte[] raw = new byte[CKPT_LENGTH];
+        Parser.putLong(raw, OF_CKPT_SEG_NO, segNo);
+        Parser.putInt(raw, OF_CKPT_PAGES, pages);
+        Parser.putInt(raw, OF_CKPT_CHECKSUM, checkSum(raw, OF_CKPT_CHECKSUM));
+        File tmp = new File(path + CKPT_SUFFIX + TMP_SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.setLength(0);
+            raf.write(raw);
+            raf.getChannel().force(true);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        try {
+            Files.move(tmp.toPath(), new File(path + CKPT_SUFFIX).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        checkpointPages = pages;
+    }
+
+    /**
+     * 读入检查点, 返回恢复开始的段号
+     * @return
+     */
+    private long readCheckpoint() {
+        byte[] raw = null;
+        try {
+            raw = Files.readAllBytes(new File(path + CKPT_SUFFIX).toPath());
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if (raw.length != CKPT_LENGTH) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        if (checkSum(raw, OF_CKPT_CHECKSUM) != Parser.getInt(raw, OF_CKPT_CHECKSUM)) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        checkpointPages = Parser.getInt(raw, OF_CKPT_PAGES);
+        return Parser.getLong(raw, OF_CKPT_SEG_NO);
+    }
+
+    private static int checkSum(byte[] raw, int len) {
+        CRC32C crc = new CRC32C();
+        crc.update(raw, 0, len);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 删除崩溃时留下的检查点与新段的临时文件
+     */
+    private void removeTempFiles() {
+        File base = new File(path).getAbsoluteFile();
+        String prefix = base.getName() + ".";
+        File[] files = base.getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            String n = f.getName();
+            if (n.startsWith(prefix) && (n.endsWith(CKPT_SUFFIX + TMP_SUFFIX) || n.endsWith(LOG_SUFFIX + TMP_SUFFIX))) {
+                try {
+                    Files.deleteIfExists(f.toPath());
+                } catch (IOException e) {
+                    Panic.panic(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 目录中属于本日志的所有段号, 升序
+     * @return
+     */
+    private long[] listSegments() {
+        File base = new File(path).getAbsoluteFile();
+        String prefix = base.getName() + ".";
+        File[] files = base.getParentFile().listFiles();
+        if (files == null) {
+            return new long[0];
+        }
+        return Arrays.stream(files)
+                .map(File::getName)
+                .filter(n -> n.startsWith(prefix) && n.endsWith(LOG_SUFFIX))
+                .map(n -> n.substring(prefix.length(), n.length() - LOG_SUFFIX.length()))
+                .filter(n -> !n.isEmpty() && n.chars().allMatch(Character::isDigit))
+                .mapToLong(Long::parseLong)
+                .sorted()
+                .toArray();
+    }
+
+    private static String segmentPath(String path, long no) {
+        return path + String.format(".%08d", no);
+    }
+}
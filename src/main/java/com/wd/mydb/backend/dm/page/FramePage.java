@@ -0,0 +1,87 @@
+package com.wd.mydb.backend.dm.page;
+
+import com.wd.mydb.backend.dm.pageCache.PageCache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 堆外帧池中的一个页帧
+ * 帧在整个 PageCache 生命周期内被反复复用, 每次装入新页面时由 reset 重置页号和脏标记
+ */
+public class FramePage implements Page {
+
+    private volatile int pageNumber;
+    private volatile boolean dirty;
+    private Lock lock;
+
+    /**
+     * 交给使用者的视图, 只允许绝对位置读写
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * 供 PageCache 装入页面的视图, 会修改 position, 只在缺页时由加载线程独占使用
+     */
+    private ByteBuffer ioBuffer;
+
+    private PageCache pc;
+
+    public FramePage(ByteBuffer buffer, PageCache pc) {
+        this.buffer = buffer;
+        this.ioBuffer = buffer.duplicate();
+        this.pc = pc;
+        lock = new ReentrantLock();
+    }
+
+    public void reset(int pageNumber) {
+        this.pageNumber = pageNumber;
+        this.dirty = false;
+    }
+
+    public ByteBuffer ioBuffer() {
+        ioBuffer.clear();
+        return ioBuffer;
+    }
+
+    @Override
+    public void lock() {
+        lock.lock();
+    }
+
+    @Override
+    public void unlock() {
+        lock.unlock();
+    }
+
+    @Override
+    public void release() {
+        pc.release(this);
+    }
+
+    @Override
+    public void setDirty(boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    @Override
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    @Override
+    public int getPageNumber() {
+        return pageNumber;
+    }
+
+    @Override
+    public byte[] getData() {
+        throw new UnsupportedOperationException("off-heap frame has no heap array");
+    }
+
+    @Override
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+}
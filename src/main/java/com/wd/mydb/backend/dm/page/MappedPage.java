@@ -0,0 +1,74 @@
+package com.wd.mydb.backend.dm.page;
+
+import com.wd.mydb.backend.dm.pageCache.PageCache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 直接建立在文件映射上的页面, 修改即写入操作系统的页缓存
+ */
+public class MappedPage implements Page {
+
+    private int pageNumber;
+    private ByteBuffer buffer;
+    private volatile boolean dirty;
+    private Lock lock;
+
+    private PageCache pc;
+
+    public MappedPage(int pageNumber, ByteBuffer buffer, PageCache pc) {
+        this.pageNumber = pageNumber;
+        this.buffer = buffer;
+        this.pc = pc;
+        lock = new ReentrantLock();
+    }
+
+    @Override
+    public void lock() {
+        lock.lock();
+    }
+
+    @Override
+    public void unlock() {
+        lock.unlock();
+    }
+
+    @Override
+    public void release() {
+        pc.release(this);
+    }
+
+    /**
+     * 变脏时清除页尾 CRC, 操作系统在封印之前写回的页面不会被当作损坏
+     * @param dirty
+     */
+    @Override
+    public void setDirty(boolean dirty) {
+        if (dirty) {
+            PageTrailer.unseal(buffer);
+        }
+        this.dirty = dirty;
+    }
+
+    @Override
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    @Override
+    public int getPageNumber() {
+        return pageNumber;
+    }
+
+    @Override
+    public byte[] getData() {
+        throw new UnsupportedOperationException("mapped page has no heap array");
+    }
+
+    @Override
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+}
@@ -1,5 +1,7 @@
 package com.wd.mydb.backend.dm.page;
 
+import java.nio.ByteBuffer;
+
 public interface Page {
     void lock();
     void unlock();
@@ -7,5 +9,17 @@ public interface Page {
     void setDirty(boolean dirty);
     boolean isDirty();
     int getPageNumber();
+
+    /**
+     * 页面数据所在的堆内数组, 数据不在堆内的页面 (如 mmap 页面) 抛出 UnsupportedOperationException
+     * @return
+     */
     byte[] getData();
+
+    /**
+     * 页面数据的 ByteBuffer 视图, 容量为 PAGE_SIZE, 所有实现都支持
+     * 视图可能被多个线程共享, 只能使用绝对位置的读写
+     * @return
+     */
+    ByteBuffer getBuffer();
 }
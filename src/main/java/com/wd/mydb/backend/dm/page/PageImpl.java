@@ -2,6 +2,7 @@ package com.wd.mydb.backend.dm.page;
 
 import com.wd.mydb.backend.dm.pageCache.PageCache;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -9,7 +10,8 @@ public class PageImpl implements Page {
     
     private int pageNumber;
     private byte[] data;
-    private boolean dirty;
+    private ByteBuffer buffer;
+    private volatile boolean dirty;
     private Lock lock;
     
     private PageCache pc;
@@ -17,6 +19,7 @@ public class PageImpl implements Page {
     public PageImpl(int pageNumber, byte[] data, PageCache pc) {
         this.pageNumber = pageNumber;
         this.data = data;
+        this.buffer = ByteBuffer.wrap(data);
         this.pc = pc;
         lock = new ReentrantLock();
     }
@@ -55,4 +58,9 @@ public class PageImpl implements Page {
     public byte[] getData() {
         return data;
     }
+
+    @Override
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
 }
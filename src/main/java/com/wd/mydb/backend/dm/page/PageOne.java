@@ -1,8 +1,9 @@
 package com.wd.mydb.backend.dm.page;
 
+import com.wd.mydb.backend.utils.Buffers;
 import com.wd.mydb.backend.utils.RandomUtil;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 import static com.wd.mydb.backend.dm.pageCache.PageCache.PAGE_SIZE;
 
@@ -19,44 +20,34 @@ public class PageOne {
     
     public static byte[] InitRaw() {
         byte[] raw = new byte[PAGE_SIZE];
-        setVcOpen(raw);
+        setVcOpen(ByteBuffer.wrap(raw));
         return raw;
     }
     
     public static void setVcOpen(Page page) {
         page.setDirty(true);
-        setVcOpen(page.getData());
+        setVcOpen(page.getBuffer());
     }
     
-    private static void setVcOpen(byte[] raw) {
-        System.arraycopy(
-                RandomUtil.randomBytes(LEN_VC), 0,
-                raw, OF_VC, 
-                LEN_VC
-        );
+    private static void setVcOpen(ByteBuffer buf) {
+        Buffers.put(buf, OF_VC, RandomUtil.randomBytes(LEN_VC));
     }
     
     public static void setVcClose(Page page) {
         page.setDirty(true);
-        setVcClose(page.getData());
+        setVcClose(page.getBuffer());
     }
     
-    private static void setVcClose(byte[] raw) {
-        System.arraycopy(
-                raw, OF_VC,
-                raw, OF_VC + LEN_VC,
-                LEN_VC
-        );
+    private static void setVcClose(ByteBuffer buf) {
+        buf.putLong(OF_VC + LEN_VC, buf.getLong(OF_VC));
     }
     
     public static boolean checkvC(Page page) {
-        return checkvC(page.getData());
+        return checkvC(page.getBuffer());
     }
     
-    private static boolean checkvC(byte[] raw) {
-        return Arrays.equals(
-                Arrays.copyOfRange(raw, OF_VC, OF_VC + LEN_VC), 
-                Arrays.copyOfRange(raw, OF_VC + LEN_VC, OF_VC + (LEN_VC << 1))
-        );
+    private static boolean checkvC(ByteBuffer buf) {
+        // LEN_VC 恰为 8 字节, 直接按 long 比较
+        return buf.getLong(OF_VC) == buf.getLong(OF_VC + LEN_VC);
     }
 }
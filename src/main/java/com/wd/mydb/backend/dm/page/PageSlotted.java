@@ -0,0 +1,309 @@
+package com.wd.mydb.backend.dm.page;
+
+import com.wd.mydb.backend.utils.Buffers;
+
+import java.nio.ByteBuffer;
+
+import static com.wd.mydb.backend.dm.pageCache.PageCache.PAGE_SIZE;
+
+/**
+ * PageSlotted 管理带槽位目录的普通页
+ * 页面结构
+ * [Marker] [NSlots] [FreeStart] [FreeEnd] [Fragmented] [Slot0] [Slot1] ... [空闲区] ... [RecordN] ... [Record0]
+ * Marker: 2字节, 固定为 0xFFFF; PageX 的第一个 short 是 FSO, 取值在 [2, PAGE_SIZE], 以此区分两种页
+ * NSlots: 2字节, 槽位个数
+ * FreeStart: 2字节, 槽位目录的结尾, 即空闲区的开始
+ * FreeEnd: 2字节, 记录区的开始, 记录从页尾向前增长
+ * Fragmented: 2字节, 记录区中已经被删除或缩短而空出的字节数
+ * 每个槽位为 [Offset 2字节] [Length 2字节], Offset 为 0 表示空槽位
+ *
+ * 记录在页内的位置可以移动, 外部只通过槽位号引用记录.
+ * 连续空闲区不够而总空闲空间足够时, 在页内整理 (compact) 记录区.
+ * 所有操作都通过 Page.getBuffer() 视图完成, 调用方需持有页面锁.
+ * 修改页面之前先调用 setDirty, 空间不足的操作不修改页面.
+ *
+ * 目前 DataManager 仍只使用 PageX, 本类尚未接入:
+ * DataItem 只会被标记 XMAX 而不会被释放, 页内没有可回收的空间;
+ * 缓存中的 DataItem 直接引用页内偏移, 整理记录区会使其失效;
+ * 接入时需要按槽位号编码的 UID 以及对应的日志与恢复路径.
+ */
+public class PageSlotted {
+
+    public static final short MARKER = (short) 0xFFFF;
+
+    private static final int OF_MARKER = 0;
+    private static final int OF_NSLOTS = 2;
+    private static final int OF_FREE_START = 4;
+    private static final int OF_FREE_END = 6;
+    private static final int OF_FRAGMENTED = 8;
+    private static final int OF_SLOTS = 10;
+
+    private static final int SLOT_SIZE = 4;
+
+    /**
+     * 记录区的结尾, 之后是页尾
+     */
+    private static final int DATA_END = PageTrailer.DATA_END;
+
+    public static final int MAX_FREE_SPACE = DATA_END - OF_SLOTS - SLOT_SIZE;
+
+    public static byte[] InitRaw() {
+        byte[] raw = new byte[PAGE_SIZE];
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        buf.putShort(OF_MARKER, MARKER);
+        setNSlots(buf, 0);
+        setFreeStart(buf, OF_SLOTS);
+        setFreeEnd(buf, DATA_END);
+        setFragmented(buf, 0);
+        return raw;
+    }
+
+    /**
+     * 页面是否是槽位页, 否则是 PageX 格式的页
+     * @param page
+     * @return
+     */
+    public static boolean isSlotted(Page page) {
+        return page.getBuffer().getShort(OF_MARKER) == MARKER;
+    }
+
+    /**
+     * 将 raw 插入 page 中, 返回槽位号, 空间不足时返回 -1
+     * @param page
+     * @param raw
+     * @return
+     */
+    public static short insert(Page page, byte[] raw) {
+        ByteBuffer buf = page.getBuffer();
+        int slot = findFreeSlot(buf);
+        int slotCost = slot < getNSlots(buf) ? 0 : SLOT_SIZE;
+        if (getFreeSpace(page) < raw.length + slotCost) {
+            return -1;
+        }
+        page.setDirty(true);
+        reserve(buf, raw.length + slotCost);
+        if (slotCost > 0) {
+            setNSlots(buf, slot + 1);
+            setFreeStart(buf, getFreeStart(buf) + SLOT_SIZE);
+        }
+        place(buf, slot, raw);
+        return (short) slot;
+    }
+
+    /**
+     * 读取槽位中的记录, 空槽位返回 null
+     * @param page
+     * @param slot
+     * @return
+     */
+    public static byte[] read(Page page, short slot) {
+        ByteBuffer buf = page.getBuffer();
+        if (slot < 0 || slot >= getNSlots(buf)) {
+            return null;
+        }
+        int offset = getSlotOffset(buf, slot);
+        if (offset == 0) {
+            return null;
+        }
+        byte[] raw = new byte[getSlotLength(buf, slot)];
+        Buffers.get(buf, offset, raw);
+        return raw;
+    }
+
+    /**
+     * 用 raw 替换槽位中的记录, 槽位号不变
+     * 不变长或变短时原地更新, 变长时在页内重新分配, 空间不足时返回 false 且记录不变
+     * @param page
+     * @param slot
+     * @param raw
+     * @return
+     */
+    public static boolean update(Page page, short slot, byte[] raw) {
+        ByteBuffer buf = page.getBuffer();
+        int offset = getSlotOffset(buf, slot);
+        int length = getSlotLength(buf, slot);
+        if (raw.length > length && getFreeSpace(page) + length < raw.length) {
+            return false;
+        }
+        page.setDirty(true);
+        if (raw.length <= length) {
+            Buffers.put(buf, offset, raw);
+            setSlot(buf, slot, offset, raw.length);
+            setFragmented(buf, getFragmented(buf) + length - raw.length);
+            return true;
+        }
+
+        // 先释放旧记录, 总空间已经确认足够, 必要时整理后放入
+        setSlot(buf, slot, 0, 0);
+        setFragmented(buf, getFragmented(buf) + length);
+        reserve(buf, raw.length);
+        place(buf, slot, raw);
+        return true;
+    }
+
+    /**
+     * 删除槽位中的记录, 末尾的空槽位一并回收
+     * @param page
+     * @param slot
+     */
+    public static void delete(Page page, short slot) {
+        ByteBuffer buf = page.getBuffer();
+        if (getSlotOffset(buf, slot) == 0) {
+            return;
+        }
+        page.setDirty(true);
+        setFragmented(buf, getFragmented(buf) + getSlotLength(buf, slot));
+        setSlot(buf, slot, 0, 0);
+
+        int n = getNSlots(buf);
+        while (n > 0 && getSlotOffset(buf, n - 1) == 0) {
+            n --;
+        }
+        setFreeStart(buf, getFreeStart(buf) - (getNSlots(buf) - n) * SLOT_SIZE);
+        setNSlots(buf, n);
+    }
+
+    /**
+     * 恢复时把 raw 放入指定槽位, 槽位目录不够长时扩展
+     * @param page
+     * @param slot
+     * @param raw
+     * @return 空间不足时返回 false
+     */
+    public static boolean recoverInsert(Page page, short slot, byte[] raw) {
+        ByteBuffer buf = page.getBuffer();
+        int n = getNSlots(buf);
+        if (slot < n && getSlotOffset(buf, slot) != 0) {
+            return update(page, slot, raw);
+        }
+        int slotCost = slot < n ? 0 : (slot + 1 - n) * SLOT_SIZE;
+        if (getFreeSpace(page) < raw.length + slotCost) {
+            return false;
+        }
+        page.setDirty(true);
+        reserve(buf, raw.length + slotCost);
+        for (int i = n; i <= slot; i++) {
+            setSlot(buf, i, 0, 0);
+        }
+        if (slotCost > 0) {
+            setNSlots(buf, slot + 1);
+            setFreeStart(buf, getFreeStart(buf) + slotCost);
+        }
+        place(buf, slot, raw);
+        return true;
+    }
+
+    /**
+     * 页面的总空闲空间, 包括记录区中的碎片, 插入新记录时还需要一个槽位的空间
+     * @param page
+     * @return
+     */
+    public static int getFreeSpace(Page page) {
+        ByteBuffer buf = page.getBuffer();
+        return getFreeEnd(buf) - getFreeStart(buf) + getFragmented(buf);
+    }
+
+    /**
+     * 整理记录区: 所有记录紧密地排在页尾, 碎片合并进连续空闲区
+     * @param page
+     */
+    public static void compact(Page page) {
+        page.setDirty(true);
+        compact(page.getBuffer());
+    }
+
+    private static void compact(ByteBuffer buf) {
+        int n = getNSlots(buf);
+        int freeEnd = getFreeEnd(buf);
+        byte[] heap = new byte[DATA_END - freeEnd];
+        Buffers.get(buf, freeEnd, heap);
+
+        int end = DATA_END;
+        for (int i = 0; i < n; i++) {
+            int offset = getSlotOffset(buf, i);
+            if (offset == 0) {
+                continue;
+            }
+            int length = getSlotLength(buf, i);
+            end -= length;
+            Buffers.put(buf, end, heap, offset - freeEnd, length);
+            setSlot(buf, i, end, length);
+        }
+        setFreeEnd(buf, end);
+        setFragmented(buf, 0);
+    }
+
+    /**
+     * 保证连续空闲区至少有 size 字节, 必要时整理记录区
+     * 调用方已经确认总空闲空间足够
+     * @param buf
+     * @param size
+     */
+    private static void reserve(ByteBuffer buf, int size) {
+        if (getFreeEnd(buf) - getFreeStart(buf) < size) {
+            compact(buf);
+        }
+    }
+
+    private static void place(ByteBuffer buf, int slot, byte[] raw) {
+        int offset = getFreeEnd(buf) - raw.length;
+        Buffers.put(buf, offset, raw);
+        setFreeEnd(buf, offset);
+        setSlot(buf, slot, offset, raw.length);
+    }
+
+    private static int findFreeSlot(ByteBuffer buf) {
+        int n = getNSlots(buf);
+        for (int i = 0; i < n; i++) {
+            if (getSlotOffset(buf, i) == 0) {
+                return i;
+            }
+        }
+        return n;
+    }
+
+    private static int getNSlots(ByteBuffer buf) {
+        return Short.toUnsignedInt(buf.getShort(OF_NSLOTS));
+    }
+
+    private static void setNSlots(ByteBuffer buf, int n) {
+        buf.putShort(OF_NSLOTS, (short) n);
+    }
+
+    private static int getFreeStart(ByteBuffer buf) {
+        return Short.toUnsignedInt(buf.getShort(OF_FREE_START));
+    }
+
+    private static void setFreeStart(ByteBuffer buf, int offset) {
+        buf.putShort(OF_FREE_START, (short) offset);
+    }
+
+    private static int getFreeEnd(ByteBuffer buf) {
+        return Short.toUnsignedInt(buf.getShort(OF_FREE_END));
+    }
+
+    private static void setFreeEnd(ByteBuffer buf, int offset) {
+        buf.putShort(OF_FREE_END, (short) offset);
+    }
+
+    private static int getFragmented(ByteBuffer buf) {
+        return Short.toUnsignedInt(buf.getShort(OF_FRAGMENTED));
+    }
+
+    private static void setFragmented(ByteBuffer buf, int size) {
+        buf.putShort(OF_FRAGMENTED, (short) size);
+    }
+
+    private static int getSlotOffset(ByteBuffer buf, int slot) {
+        return Short.toUnsignedInt(buf.getShort(OF_SLOTS + slot * SLOT_SIZE));
+    }
+
+    private static int getSlotLength(ByteBuffer buf, int slot) {
+        return Short.toUnsignedInt(buf.getShort(OF_SLOTS + slot * SLOT_SIZE + 2));
+    }
+
+    private static void setSlot(ByteBuffer buf, int slot, int offset, int length) {
+        buf.putShort(OF_SLOTS + slot * SLOT_SIZE, (short) offset);
+        buf.putShort(OF_SLOTS + slot * SLOT_SIZE + 2, (short) length);
+    }
+}
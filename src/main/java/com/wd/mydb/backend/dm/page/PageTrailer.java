@@ -0,0 +1,104 @@
+package com.wd.mydb.backend.dm.page;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+import static com.wd.mydb.backend.dm.pageCache.PageCache.PAGE_SIZE;
+
+/**
+ * 页尾
+ * 每一页的最后 12 字节
+ * [LSN] [CRC]
+ * LSN: 8字节, 最后一条已经应用到本页的日志的 LSN, 恢复时跳过 LSN 不大于它的日志
+ * CRC: 4字节, 页面前 PAGE_SIZE - 4 字节的 CRC32C, 每次写回时计算, 读入时校验, 用于发现写了一半的页面
+ *
+ * CRC 为 0 表示页面没有封印 (旧版本写出的页面, 或 mmap 页面修改后尚未刷盘), 读入时不校验.
+ * 页面格式的数据区都不应超过 DATA_END. 数据区已经延伸进页尾的旧 PageX 页面没有页尾:
+ * LSN 读作 0 且不记录, 不封印也不校验, 否则会覆盖或误读其中的数据.
+ */
+public class PageTrailer {
+
+    public static final int LEN_TRAILER = 12;
+    public static final int DATA_END = PAGE_SIZE - LEN_TRAILER;
+
+    private static final int OF_LSN = DATA_END;
+    private static final int OF_CRC = OF_LSN + 8;
+
+    public static long getLSN(Page page) {
+        ByteBuffer buf = page.getBuffer();
+        if (!hasTrailer(buf)) {
+            return 0;
+        }
+        return buf.getLong(OF_LSN);
+    }
+
+    /**
+     * 记录一条已经应用到页面的日志, 页面 LSN 只增不减
+     * @param page
+     * @param lsn
+     */
+    public static void setLSN(Page page, long lsn) {
+        ByteBuffer buf = page.getBuffer();
+        if (hasTrailer(buf) && buf.getLong(OF_LSN) < lsn) {
+            page.setDirty(true);
+            buf.putLong(OF_LSN, lsn);
+        }
+    }
+
+    /**
+     * 计算并写入 CRC
+     * @param buf
+     */
+    public static void seal(ByteBuffer buf) {
+        if (!hasTrailer(buf)) {
+            return;
+        }
+        buf.putInt(OF_CRC, checkSum(buf));
+    }
+
+    public static void seal(byte[] raw) {
+        seal(ByteBuffer.wrap(raw));
+    }
+
+    /**
+     * 清除 CRC, 页面回到未封印状态
+     * @param buf
+     */
+    public static void unseal(ByteBuffer buf) {
+        if (hasTrailer(buf) && buf.getInt(OF_CRC) != 0) {
+            buf.putInt(OF_CRC, 0);
+        }
+    }
+
+    /**
+     * 校验页面, 未封印的页面视为完好
+     * @param buf
+     * @return
+     */
+    public static boolean verify(ByteBuffer buf) {
+        if (!hasTrailer(buf)) {
+            return true;
+        }
+        int crc = buf.getInt(OF_CRC);
+        return crc == 0 || crc == checkSum(buf);
+    }
+
+    /**
+     * 数据区已经延伸进页尾的旧 PageX 页面没有页尾
+     * @param buf
+     * @return
+     */
+    private static boolean hasTrailer(ByteBuffer buf) {
+        int fso = Short.toUnsignedInt(buf.getShort(0));
+        return fso <= DATA_END || fso > PAGE_SIZE;
+    }
+
+    private static int checkSum(ByteBuffer buf) {
+        CRC32C crc = new CRC32C();
+        ByteBuffer dup = buf.duplicate();
+        dup.position(0);
+        dup.limit(OF_CRC);
+        crc.update(dup);
+        return (int) crc.getValue();
+    }
+}
@@ -1,8 +1,8 @@
 package com.wd.mydb.backend.dm.page;
 
-import com.wd.mydb.backend.utils.Parser;
+import com.wd.mydb.backend.utils.Buffers;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 import static com.wd.mydb.backend.dm.pageCache.PageCache.PAGE_SIZE;
 
@@ -11,16 +11,18 @@ import static com.wd.mydb.backend.dm.pageCache.PageCache.PAGE_SIZE;
  * 普通页结构
  * [FreeSpaceOffset] [Data]
  * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * 数据区到 PageTrailer.DATA_END 为止, 之后是页尾的 LSN 与 CRC
+ * 所有操作都通过 Page.getBuffer() 视图完成, 页面数据不必在堆内
  */
 public class PageX {
     
     private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
-    public static final int MAX_FREE_SPACE = PAGE_SIZE - OF_DATA;
+    public static final short OF_DATA = 2;
+    public static final int MAX_FREE_SPACE = PageTrailer.DATA_END - OF_DATA;
 
     public static byte[] InitRaw() {
         byte[] raw = new byte[PAGE_SIZE];
-        setFSO(raw, OF_DATA);
+        setFSO(ByteBuffer.wrap(raw), OF_DATA);
         return raw;
     }
     
@@ -32,26 +34,28 @@ public class PageX {
      */
     public static short insert(Page page, byte[] raw) {
         page.setDirty(true);
-        short offset = getFSO(page.getData());
-        System.arraycopy(raw, 0, page.getData(), offset, raw.length);
-        setFSO(page.getData(), (short) (offset + raw.length));
+        ByteBuffer buf = page.getBuffer();
+        short offset = getFSO(buf);
+        Buffers.put(buf, offset, raw);
+        setFSO(buf, (short) (offset + raw.length));
         return offset;
     }
     
-    private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0,
-                raw, OF_FREE, 
-                OF_DATA
-        );
+    private static void setFSO(ByteBuffer buf, short ofData) {
+        buf.putShort(OF_FREE, ofData);
     }
 
     /**
      * 获取 page 的 FSO
-     * @param raw
+     * @param page
      * @return
      */
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    public static short getFSO(Page page) {
+        return getFSO(page.getBuffer());
+    }
+
+    private static short getFSO(ByteBuffer buf) {
+        return buf.getShort(OF_FREE);
     }
 
     /**
@@ -60,7 +64,7 @@ public class PageX {
      * @return
      */
     public static int getFreeSpace(Page page) {
-        return PAGE_SIZE - (int) getFSO(page.getData());
+        return Math.max(0, PageTrailer.DATA_END - (int) getFSO(page.getBuffer()));
     }
 
     /**
@@ -71,11 +75,12 @@ public class PageX {
      */
     public static void recoverInsert(Page page, byte[] raw, short offset) {
         page.setDirty(true);
-        System.arraycopy(raw, 0, page.getData(), offset, raw.length);
+        ByteBuffer buf = page.getBuffer();
+        Buffers.put(buf, offset, raw);
         
-        short rawFSO = getFSO(page.getData());
+        short rawFSO = getFSO(buf);
         if (rawFSO < offset + raw.length) {
-            setFSO(page.getData(), (short) (offset + raw.length));
+            setFSO(buf, (short) (offset + raw.length));
         }
     }
 
@@ -87,7 +92,41 @@ public class PageX {
      */
     public static void recoverUpdate(Page page, byte[] raw, short offset) {
         page.setDirty(true);
-        System.arraycopy(raw, 0, page.getData(), offset, raw.length);
+        Buffers.put(page.getBuffer(), offset, raw);
+    }
+
+    /**
+     * 重做 LSN 为 lsn 的插入日志, 页面 LSN 不小于 lsn 说明该日志已经在页面上, 直接跳过
+     * @param page
+     * @param raw
+     * @param offset
+     * @param lsn
+     * @return 是否真正应用了该日志
+     */
+    public static boolean recoverInsert(Page page, byte[] raw, short offset, long lsn) {
+        if (PageTrailer.getLSN(page) >= lsn) {
+            return false;
+        }
+        recoverInsert(page, raw, offset);
+        PageTrailer.setLSN(page, lsn);
+        return true;
+    }
+
+    /**
+     * 重做 LSN 为 lsn 的更新日志, 页面 LSN 不小于 lsn 时跳过
+     * @param page
+     * @param raw
+     * @param offset
+     * @param lsn
+     * @return 是否真正应用了该日志
+     */
+    public static boolean recoverUpdate(Page page, byte[] raw, short offset, long lsn) {
+        if (PageTrailer.getLSN(page) >= lsn) {
+            return false;
+        }
+        recoverUpdate(page, raw, offset);
+        PageTrailer.setLSN(page, lsn);
+        return true;
     }
     
 }
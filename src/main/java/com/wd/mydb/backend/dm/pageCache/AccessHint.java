@@ -0,0 +1,19 @@
+package com.wd.mydb.backend.dm.pageCache;
+
+/**
+ * 页面访问提示
+ */
+public enum AccessHint {
+
+    /**
+     * 普通访问, 页面进入缓存并参与替换
+     */
+    NORMAL,
+
+    /**
+     * 大范围顺序扫描, 每页只访问一次
+     * 新读入的页面在一个固定大小的扫描环中循环使用名额, 不进入替换策略, 不会挤出缓存中的热点页面;
+     * 已在缓存中的页面照常返回, 但不算作一次热点访问
+     */
+    SEQUENTIAL
+}
@@ -0,0 +1,55 @@
+package com.wd.mydb.backend.dm.pageCache;
+
+import com.wd.mydb.backend.dm.page.FramePage;
+import com.wd.mydb.common.Error;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import static com.wd.mydb.backend.dm.pageCache.PageCache.PAGE_SIZE;
+
+/**
+ * 预分配的堆外页帧池
+ * 启动时一次性分配 frames 个 PAGE_SIZE 大小的堆外帧, 之后缺页只是从空闲队列中取出一个帧,
+ * 驱逐时再放回, 页面数据不进入 Java 堆, 也不再产生页面大小的垃圾.
+ * 帧数与 PageCache 的 maxResource 相同, 因此缓存未满时总能取到空闲帧.
+ */
+class FramePool {
+
+    /**
+     * 单块堆外内存的上限, 必须是 PAGE_SIZE 的整数倍
+     */
+    private static final int SLAB_SIZE = 1 << 30;
+    private static final int FRAMES_PER_SLAB = SLAB_SIZE / PAGE_SIZE;
+
+    private final ArrayBlockingQueue<FramePage> free;
+
+    FramePool(int frames, PageCache pc) {
+        free = new ArrayBlockingQueue<>(frames);
+        int allocated = 0;
+        while (allocated < frames) {
+            int n = Math.min(FRAMES_PER_SLAB, frames - allocated);
+            ByteBuffer slab = ByteBuffer.allocateDirect(n * PAGE_SIZE);
+            for (int i = 0; i < n; i++) {
+                ByteBuffer dup = slab.duplicate();
+                dup.position(i * PAGE_SIZE);
+                dup.limit((i + 1) * PAGE_SIZE);
+                free.add(new FramePage(dup.slice(), pc));
+            }
+            allocated += n;
+        }
+    }
+
+    FramePage acquire(int pgno) throws Exception {
+        FramePage frame = free.poll();
+        if (frame == null) {
+            throw Error.CacheFullException;
+        }
+        frame.reset(pgno);
+        return frame;
+    }
+
+    void release(FramePage frame) {
+        free.offer(frame);
+    }
+}
@@ -0,0 +1,328 @@
+package com.wd.mydb.backend.dm.pageCache;
+
+import com.wd.mydb.backend.common.AbstractCache;
+import com.wd.mydb.backend.common.ClockPolicy;
+import com.wd.mydb.backend.common.ReplacementPolicy;
+import com.wd.mydb.backend.dm.page.MappedPage;
+import com.wd.mydb.backend.dm.page.Page;
+import com.wd.mydb.backend.dm.page.PageTrailer;
+import com.wd.mydb.backend.utils.Panic;
+import com.wd.mydb.common.Error;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于 mmap 的 PageCache
+ *
+ * 数据库文件按 CHUNK_SIZE 分块映射, 页面是映射上的视图, 读页面不发生拷贝.
+ * 缓存中只保存页面视图对象, 驱逐视图不需要 I/O, 脏页面在驱逐或 flushPage 时 force 所在的块.
+ *
+ * 最后一块的映射按几何增长: 访问到映射之外的页面时, 先把文件预先扩展到新的映射长度 (每次至多翻倍,
+ * 且增长不超过 MAX_GROW), 再重新映射, 而不是每新建一页就重新映射整块.
+ * 旧映射上的视图仍然有效, 两个映射共享同一份操作系统页缓存.
+ * 页数记录在内存中, 不再等于文件长度: 关闭时把文件截回页数;
+ * 崩溃后文件末尾可能留有预先扩展的全 0 页面, 打开时从后往前跳过它们 (写出过的页面都带有页尾 CRC, 不会全为 0).
+ *
+ * 操作系统随时可能把映射中的脏页写回, 页尾 CRC 无法与内容保持一致,
+ * 因此页面被标记为脏时清除 CRC (见 MappedPage.setDirty), 只在 force 之前重新封印.
+ */
+public class MappedPageCacheImpl extends AbstractCache<Page> implements PageCache {
+
+    private static final int MEN_MIN_LIM = 10;
+
+    /**
+     * 每块映射的大小, 必须是 PAGE_SIZE 的整数倍
+     */
+    static final int CHUNK_SIZE = 1 << 30;
+    private static final int PAGES_PER_CHUNK = CHUNK_SIZE / PAGE_SIZE;
+
+    /**
+     * 最后一块的映射长度的下限, 与每次增长的上限
+     */
+    private static final int MIN_MAP = 1 << 20;
+    private static final int MAX_GROW = 64 << 20;
+
+    private RandomAccessFile raf;
+    private FileChannel fc;
+
+    /**
+     * 已映射的块, 写时复制, 读路径无锁
+     */
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private Lock mapLock;
+
+    /**
+     * 页数, 新页面写入文件之后才自增
+     */
+    private AtomicInteger pageNumbers;
+
+    /**
+     * 串行化新建页面, 保证页号按顺序发布
+     */
+    private Lock newPageLock;
+
+    public MappedPageCacheImpl(RandomAccessFile raf, FileChannel fc, int maxResource, ReplacementPolicy policy) {
+        super(maxResource, policy == null ? new ClockPolicy() : policy);
+        if (maxResource < MEN_MIN_LIM) {
+            Panic.panic(Error.MemTooSmallException);
+        }
+        long length = 0;
+        try {
+            length = raf.length();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        this.raf = raf;
+        this.fc = fc;
+        this.mapLock = new ReentrantLock();
+        this.newPageLock = new ReentrantLock();
+        this.pageNumbers = new AtomicInteger(countPages(fc, length));
+    }
+
+    /**
+     * 文件中的页数, 不计末尾预先扩展而没有写过的全 0 页面
+     * @param fc
+     * @param length
+     * @return
+     */
+    private static int countPages(FileChannel fc, long length) {
+        int pages = (int) (length / PAGE_SIZE);
+        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
+        try {
+            while (pages > 0) {
+                buf.clear();
+                long offset = (long) (pages - 1) * PAGE_SIZE;
+                while (buf.hasRemaining()) {
+                    if (fc.read(buf, offset + buf.position()) < 0) {
+                        break;
+                    }
+                }
+                if (!isZero(buf.array())) {
+                    break;
+                }
+                pages --;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return pages;
+    }
+
+    private static boolean isZero(byte[] raw) {
+        for (byte b : raw) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected Page getForCache(long key) throws Exception {
+        int pgno = (int) key;
+        if (pgno < 1 || pgno > pageNumbers.get()) {
+            throw Error.PageOutOfRangeException;
+        }
+        int idx = (pgno - 1) / PAGES_PER_CHUNK;
+        int off = ((pgno - 1) % PAGES_PER_CHUNK) * PAGE_SIZE;
+
+        ByteBuffer view = chunk(idx, off + PAGE_SIZE).duplicate();
+        view.position(off);
+        view.limit(off + PAGE_SIZE);
+        return new MappedPage(pgno, view.slice(), this);
+    }
+
+    /**
+     * 取得第 idx 块的映射, 保证其长度至少为 needed
+     * 需要重新映射时按几何增长, 文件不够长时先扩展文件
+     * @param idx
+     * @param needed
+     * @return
+     * @throws IOException
+     */
+    private MappedByteBuffer chunk(int idx, int needed) throws IOException {
+        MappedByteBuffer[] cs = chunks;
+        if (idx < cs.length && cs[idx] != null && cs[idx].capacity() >= needed) {
+            return cs[idx];
+        }
+        mapLock.lock();
+        try {
+            cs = chunks;
+            if (idx < cs.length && cs[idx] != null && cs[idx].capacity() >= needed) {
+                return cs[idx];
+            }
+            long start = (long) idx * CHUNK_SIZE;
+            int old = idx < cs.length && cs[idx] != null ? cs[idx].capacity() : 0;
+            long size = Math.max(needed, Math.max(MIN_MAP, Math.min(old * 2L, (long) old + MAX_GROW)));
+            size = Math.min(CHUNK_SIZE, size);
+            if (fc.size() < start + size) {
+                raf.setLength(start + size);
+            }
+            MappedByteBuffer mbb = fc.map(FileChannel.MapMode.READ_WRITE, start, size);
+            MappedByteBuffer[] next = Arrays.copyOf(cs, Math.max(cs.length, idx + 1));
+            next[idx] = mbb;
+            chunks = next;
+            return mbb;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    @Override
+    protected void releaseForCache(Page pg) {
+        if (pg.isDirty()) {
+            flush(pg);
+            pg.setDirty(false);
+        }
+    }
+
+    /**
+     * 页面的修改已经在映射中, 封印页尾后把所在的块刷回磁盘
+     * @param pg
+     */
+    private void flush(Page pg) {
+        PageTrailer.seal(pg.getBuffer());
+        int idx = (pg.getPageNumber() - 1) / PAGES_PER_CHUNK;
+        MappedByteBuffer[] cs = chunks;
+        if (idx < cs.length && cs[idx] != null) {
+            cs[idx].force();
+        }
+    }
+
+    /**
+     * 新页面通过文件写入追加, 映射在第一次访问时再扩展
+     * @param initData
+     * @return
+     */
+    @Override
+    public int newPage(byte[] initData) {
+        byte[] raw = initData.clone();
+        PageTrailer.seal(raw);
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        int pgno = 0;
+        newPageLock.lock();
+        try {
+            pgno = pageNumbers.get() + 1;
+            long offset = (long) (pgno - 1) * PAGE_SIZE;
+            while (buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());
+            }
+            pageNumbers.set(pgno);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            newPageLock.unlock();
+        }
+        try {
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return pgno;
+    }
+
+    @Override
+    public Page getPage(int pgno) throws Exception {
+        return get((long) pgno);
+    }
+
+    /**
+     * 写回所有脏页后, 把文件截回实际的页数, 去掉预先扩展的部分
+     */
+    @Override
+    public void close() {
+        super.close();
+        mapLock.lock();
+        try {
+            chunks = new MappedByteBuffer[0];
+            raf.setLength((long) pageNumbers.get() * PAGE_SIZE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            mapLock.unlock();
+        }
+        try {
+            fc.close();
+            raf.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void release(Page page) {
+        release((long) page.getPageNumber());
+    }
+
+    /**
+     * 截断文件, 并丢弃超出新长度的映射
+     * 截断前先丢弃页号大于 maxPgno 的页面视图, 它们指向的映射内存在截断后已经超出文件末尾, 再访问会触发 SIGBUS
+     * 调用方需保证被截掉的页面不再被访问
+     * @param maxPgno
+     */
+    @Override
+    public void truncateByPgno(int maxPgno) {
+        for (Page pg : discardIf(key -> key > maxPgno)) {
+            pg.setDirty(false);
+        }
+        long size = (long) maxPgno * PAGE_SIZE;
+        newPageLock.lock();
+        mapLock.lock();
+        try {
+            raf.setLength(size);
+            int keep = maxPgno / PAGES_PER_CHUNK;
+            chunks = Arrays.copyOf(chunks, Math.min(chunks.length, keep));
+            pageNumbers.set(maxPgno);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            mapLock.unlock();
+            newPageLock.unlock();
+        }
+    }
+
+    @Override
+    public int getPageNumber() {
+        return pageNumbers.intValue();
+    }
+
+    @Override
+    public void flushPage(Page page) {
+        flush(page);
+    }
+
+    /**
+     * 封印所有脏页面, 再刷回所有已映射的块
+     */
+    @Override
+    public void flushAll() {
+        for (Page pg : pinAll()) {
+            try {
+                pg.lock();
+                try {
+                    if (pg.isDirty()) {
+                        pg.setDirty(false);
+                        PageTrailer.seal(pg.getBuffer());
+                    }
+                } finally {
+                    pg.unlock();
+                }
+            } finally {
+                release(pg);
+            }
+        }
+        for (MappedByteBuffer chunk : chunks) {
+            if (chunk != null) {
+                chunk.force();
+            }
+        }
+    }
+}
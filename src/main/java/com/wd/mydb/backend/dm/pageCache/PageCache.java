@@ -1,5 +1,7 @@
 package com.wd.mydb.backend.dm.pageCache;
 
+import com.wd.mydb.backend.common.CacheStats;
+import com.wd.mydb.backend.common.ReplacementPolicy;
 import com.wd.mydb.backend.dm.page.Page;
 import com.wd.mydb.backend.utils.Panic;
 import com.wd.mydb.common.Error;
@@ -9,6 +11,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
 
 import static com.wd.mydb.backend.dm.pageCache.PageCacheImpl.DB_SUFFIX;
 
@@ -25,8 +28,71 @@ public interface PageCache {
     void truncateByPgno(int maxPgno);
     int getPageNumber();
     void flushPage(Page page);
+
+    /**
+     * 把所有脏页写回并刷盘, 包括已经被驱逐而还在后台写回的页面
+     * 返回时, 调用开始之前对页面的所有修改都已经持久化
+     */
+    void flushAll();
+
+    /**
+     * 按访问提示获取页面, 见 AccessHint
+     * mmap 实现驱逐页面视图不需要 I/O, 忽略提示
+     * @param pgno
+     * @param hint
+     * @return
+     * @throws Exception
+     */
+    default Page getPage(int pgno, AccessHint hint) throws Exception {
+        return getPage(pgno);
+    }
+
+    /**
+     * 在后台把 [fromPgno, fromPgno + count) 中不在缓存的页面读入缓存, 不等待, 不引用页面
+     * 连续的页面合并为大块读; 缓存已满且无法驱逐时放弃剩余的页面
+     * mmap 实现依赖操作系统的预读, 不做任何事
+     * @param fromPgno
+     * @param count
+     */
+    default void prefetch(int fromPgno, int count) {
+    }
+
+    /**
+     * 异步获取页面, 完成后的页面与 getPage 一样需要 release
+     * @param pgno
+     * @return
+     */
+    default CompletableFuture<Page> getPageAsync(int pgno) {
+        try {
+            return CompletableFuture.completedFuture(getPage(pgno));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * 页面缓存的命中统计
+     * getMisses() 即为物理读页的次数, getRetainedHits() 即为因页面释放后仍驻留而省掉的物理读
+     * @return
+     */
+    CacheStats stats();
     
     static PageCacheImpl create(String path, long memory) {
+        return create(path, memory, null);
+    }
+
+    /**
+     * @param policy 页面替换策略, 为 null 时使用默认的 CLOCK, 大量扫描的场景可以使用 TwoQueuePolicy
+     */
+    static PageCacheImpl create(String path, long memory, ReplacementPolicy policy) {
+        return (PageCacheImpl) create(path, memory, PageCacheType.HEAP, policy);
+    }
+
+    /**
+     * @param type 页面缓存的实现方式
+     * @param policy 页面替换策略, 为 null 时使用默认的 CLOCK
+     */
+    static PageCache create(String path, long memory, PageCacheType type, ReplacementPolicy policy) {
         File f = new File(path + DB_SUFFIX);
         try {
             if (!f.createNewFile()) {
@@ -44,10 +110,18 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int) memory / PAGE_SIZE);
+        return newPageCache(raf, fc, memory, type, policy);
     }
     
     public static PageCacheImpl open(String path, long memory) {
+        return open(path, memory, null);
+    }
+
+    static PageCacheImpl open(String path, long memory, ReplacementPolicy policy) {
+        return (PageCacheImpl) open(path, memory, PageCacheType.HEAP, policy);
+    }
+
+    static PageCache open(String path, long memory, PageCacheType type, ReplacementPolicy policy) {
         File f = new File(path + DB_SUFFIX);
         if (!f.exists()) {
             Panic.panic(Error.FileCannotRWException);
@@ -61,7 +135,16 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int) memory / PAGE_SIZE);
+        return newPageCache(raf, fc, memory, type, policy);
+    }
+
+    private static PageCache newPageCache(RandomAccessFile raf, FileChannel fc, long memory,
+                                          PageCacheType type, ReplacementPolicy policy) {
+        int maxResource = (int) (memory / PAGE_SIZE);
+        if (type == PageCacheType.MMAP) {
+            return new MappedPageCacheImpl(raf, fc, maxResource, policy);
+        }
+        return new PageCacheImpl(raf, fc, maxResource, policy, type == PageCacheType.OFF_HEAP);
     }
     
 }
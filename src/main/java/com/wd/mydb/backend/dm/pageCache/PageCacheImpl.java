@@ -1,17 +1,26 @@
 package com.wd.mydb.backend.dm.pageCache;
 
 import com.wd.mydb.backend.common.AbstractCache;
+import com.wd.mydb.backend.common.ClockPolicy;
+import com.wd.mydb.backend.common.ReplacementPolicy;
+import com.wd.mydb.backend.dm.page.FramePage;
 import com.wd.mydb.backend.dm.page.Page;
 import com.wd.mydb.backend.dm.page.PageImpl;
+import com.wd.mydb.backend.dm.page.PageTrailer;
 import com.wd.mydb.backend.utils.Panic;
 import com.wd.mydb.common.Error;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
-import io.netty.buffer.Unpooled;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -22,18 +31,81 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     public static final String DB_SUFFIX = ".db";
     
     private RandomAccessFile raf;
+
+    /**
+     * 所有页面读写都使用带 position 的 read/write, 不修改 fc 的共享位置,
+     * 因此不同页面的读写可以并行, 不需要文件锁
+     */
     private FileChannel fc;
-    private Lock fileLock;
 
     /**
      * PageCache 还使用礼一个 AtomicInteger, 
      * 来记录当前打开的数据库文件有多少页. 
      * 这个数字在数据库文件呗打开时就会计算, 并在新建页面时自增. 
+     * 新页面写入文件之后才自增, 不超过 pageNumbers 的页面都可以安全读取
      */
     private AtomicInteger pageNumbers;
+
+    /**
+     * 串行化新建页面, 保证页号按顺序发布
+     */
+    private Lock newPageLock;
+
+    /**
+     * 堆外帧池, 为 null 时页面数据放在堆内数组中
+     */
+    private FramePool pool;
+
+    /**
+     * 后台写回驱逐下来的脏页
+     */
+    private PageFlusher flusher;
+
+    /**
+     * 单次预读 I/O 的最大页数
+     */
+    private static final int MAX_READ_PAGES = 32;
+
+    /**
+     * 顺序访问检测
+     */
+    private ReadAhead readAhead;
+
+    /**
+     * 后台预读线程, 与它独占的读缓冲
+     */
+    private ExecutorService prefetcher;
+    private ByteBuffer readBuffer;
+
+    /**
+     * 扫描环的最大页数, 不超过缓存容量的 1/8
+     */
+    private static final int RING_SIZE = 32;
+
+    /**
+     * 以 SEQUENTIAL 访问的页号, 按访问顺序排列, 所有扫描共用
+     * 环满时最早的页面被 retire, 它的名额留给下一个扫描页面
+     */
+    private ArrayDeque<Integer> ring;
+    private int ringSize;
+    private Lock ringLock;
     
     public PageCacheImpl(RandomAccessFile raf, FileChannel fc, int maxResource) {
-        super(maxResource);
+        this(raf, fc, maxResource, null);
+    }
+
+    /**
+     * @param policy 页面替换策略, 为 null 时使用默认的 CLOCK
+     */
+    public PageCacheImpl(RandomAccessFile raf, FileChannel fc, int maxResource, ReplacementPolicy policy) {
+        this(raf, fc, maxResource, policy, false);
+    }
+
+    /**
+     * @param offHeap 为 true 时预分配 maxResource 个堆外页帧, 页面数据不进入 Java 堆
+     */
+    public PageCacheImpl(RandomAccessFile raf, FileChannel fc, int maxResource, ReplacementPolicy policy, boolean offHeap) {
+        super(maxResource, policy == null ? new ClockPolicy() : policy);
         if (maxResource < MEN_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
@@ -45,13 +117,29 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
         this.raf = raf; 
         this.fc = fc;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int) length / PAGE_SIZE);
+        this.pageNumbers = new AtomicInteger((int) (length / PAGE_SIZE));
+        this.newPageLock = new ReentrantLock();
+        if (offHeap) {
+            this.pool = new FramePool(maxResource, this);
+        }
+        this.flusher = new PageFlusher(fc);
+        this.readAhead = new ReadAhead();
+        this.prefetcher = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "mydb-page-prefetcher");
+            t.setDaemon(true);
+            return t;
+        });
+        this.readBuffer = ByteBuffer.allocateDirect(MAX_READ_PAGES * PAGE_SIZE);
+        this.ringSize = Math.max(1, Math.min(RING_SIZE, maxResource / 8));
+        this.ring = new ArrayDeque<>(ringSize);
+        this.ringLock = new ReentrantLock();
     }
 
     /**
      * 由于数据源就是文件系统, 
      * getForCache() 直接从文件中读取, 并包裹成 Page 即可
+     * 页面若还有未写回的快照, 则以快照为准
+     * 读入的页面需要通过页尾 CRC 的校验, 写了一半的页面抛出 CorruptedPageException
      * @param key
      * @return
      * @throws Exception
@@ -59,70 +147,290 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     protected Page getForCache(long key) throws Exception {
         int pgno = (int) key;
-        long offset =PageCacheImpl.pageOffset(pgno);
+        if (pgno < 1 || pgno > pageNumbers.get()) {
+            throw Error.PageOutOfRangeException;
+        }
+        long offset = PageCacheImpl.pageOffset(pgno);
+
+        if (pool != null) {
+            // 复用空闲帧, 缺页路径上不分配页面大小的内存
+            FramePage frame = pool.acquire(pgno);
+            ByteBuffer buf = frame.ioBuffer();
+            readPage(pgno, buf, offset);
+            // 帧中可能残留上一个页面的内容, 文件末尾之后的部分需要清零
+            while (buf.hasRemaining()) {
+                buf.put((byte) 0);
+            }
+            if (!PageTrailer.verify(frame.getBuffer())) {
+                pool.release(frame);
+                throw Error.CorruptedPageException;
+            }
+            return frame;
+        }
 
-        ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(PAGE_SIZE);
-        fileLock.lock();
+        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
+        readPage(pgno, buf, offset);
+        if (!PageTrailer.verify(buf)) {
+            throw Error.CorruptedPageException;
+        }
+        return new PageImpl(pgno, buf.array(), this);
+    }
+
+    private void readPage(int pgno, ByteBuffer buf, long offset) {
+        byte[] pending = flusher.pendingImage(pgno);
+        if (pending != null) {
+            buf.put(pending);
+            return;
+        }
         try {
-            fc.position(offset);
-            fc.read(buf.nioBuffer());
+            readFully(buf, offset);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        fileLock.unlock();
-        return new PageImpl(pgno, buf.nioBuffer().array(), this);
     }
     
     private static long pageOffset(int pgno) {
-        return (pgno - 1) * PAGE_SIZE;
+        return (long) (pgno - 1) * PAGE_SIZE;
+    }
+
+    /**
+     * 从 offset 处读满 buf, 读到文件末尾时剩余部分保持为 0
+     * @param buf
+     * @param offset
+     * @throws IOException
+     */
+    private void readFully(ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            if (fc.read(buf, offset + buf.position()) < 0) {
+                break;
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            fc.write(buf, offset + buf.position());
+        }
     }
 
     /**
      * releaseForCache() 驱逐页面时, 
      * 需要根据页面是否是脏页面, 来决定是否写会文件系统
+     * 脏页只拷贝一份快照交给后台线程写回, 不在驱逐线程上等待 fsync
      * @param pg
      */
     @Override
     protected void releaseForCache(Page pg) {
         if (pg.isDirty()) {
-            flush(pg);
+            flusher.enqueue(pg);
             pg.setDirty(false);
         }
+        if (pg instanceof FramePage) {
+            pool.release((FramePage) pg);
+        }
     }
     
-    private void flush(Page pg) {
-        int pgno = pg.getPageNumber();
-        long offset = pageOffset(pgno);
-        
-        fileLock.lock();
+    /**
+     * 同步写出新页面, 新页号不会有未写回的快照
+     * 页面写入文件后才发布新的页数, 预读不会读到文件末尾之后, 把还没写出的页面当作全 0 的页面缓存
+     * @param initData
+     * @return
+     */
+    @Override
+    public int newPage(byte[] initData) {
+        byte[] raw = initData.clone();
+        PageTrailer.seal(raw);
+        int pgno = 0;
+        newPageLock.lock();
+        try {
+            pgno = pageNumbers.get() + 1;
+            writeFully(ByteBuffer.wrap(raw), pageOffset(pgno));
+            pageNumbers.set(pgno);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            newPageLock.unlock();
+        }
         try {
-            ByteBuf buf = Unpooled.wrappedBuffer(pg.getData());
-            fc.position(offset);
-            fc.write(buf.nioBuffer());
             fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
+        }
+        return pgno;
+    }
+
+    /**
+     * 获取页面, 并记录访问以检测顺序扫描, 顺序扫描时在后台预读后面的页面
+     * @param pgno
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public Page getPage(int pgno) throws Exception {
+        Page pg = get((long) pgno);
+        int[] range = readAhead.onAccess(pgno);
+        if (range != null) {
+            prefetch(range[0], range[1]);
+        }
+        return pg;
+    }
+
+    /**
+     * SEQUENTIAL 访问不参与顺序检测和预读, 预读的页面会作为普通页面进入缓存;
+     * 顺序扫描的读 I/O 由操作系统的预读合并
+     * @param pgno
+     * @param hint
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public Page getPage(int pgno, AccessHint hint) throws Exception {
+        if (hint != AccessHint.SEQUENTIAL) {
+            return getPage(pgno);
+        }
+        ringLock.lock();
+        try {
+            while (ring.size() >= ringSize) {
+                retire(ring.poll());
+            }
+            ring.add(pgno);
         } finally {
-            fileLock.unlock();
+            ringLock.unlock();
         }
+        return get((long) pgno, true);
     }
 
     @Override
-    public int newPage(byte[] initData) {
-        int pgno = pageNumbers.incrementAndGet();
-        Page pg = new PageImpl(pgno, initData, null);
-        flush(pg);
-        return pgno;
+    public void prefetch(int fromPgno, int count) {
+        submitPrefetch(fromPgno, count);
     }
 
+    /**
+     * 在预读线程上读入页面, 读入后在该线程上引用页面
+     * 预读期间页面被驱逐时, 由该线程同步读入
+     * @param pgno
+     * @return
+     */
     @Override
-    public Page getPage(int pgno) throws Exception {
-        return get((long) pgno);
+    public CompletableFuture<Page> getPageAsync(int pgno) {
+        return submitPrefetch(pgno, 1).thenApply(v -> {
+            try {
+                return getPage(pgno);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private CompletableFuture<Void> submitPrefetch(int fromPgno, int count) {
+        try {
+            return CompletableFuture.runAsync(() -> doPrefetch(fromPgno, count), prefetcher);
+        } catch (RejectedExecutionException e) {
+            // 已经关闭
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * 把 [fromPgno, fromPgno + count) 中不在缓存的页面读入缓存
+     * 连续的缺失页面合并为一次读, 每次最多 MAX_READ_PAGES 页
+     * 读 I/O 开始前先为这些页面登记加载, 扫描线程会等待这次读, 而不是重复读取
+     * 缓存已满且无法驱逐时停止预读
+     */
+    private void doPrefetch(int fromPgno, int count) {
+        int end = Math.min(fromPgno + count - 1, pageNumbers.get());
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Page>[] run = (CompletableFuture<Page>[]) new CompletableFuture<?>[MAX_READ_PAGES];
+        int pgno = Math.max(fromPgno, 1);
+        while (pgno <= end) {
+            int n = 0;
+            while (pgno + n <= end && n < MAX_READ_PAGES) {
+                CompletableFuture<Page> loading = beginLoad(pgno + n);
+                if (loading == null) {
+                    break;
+                }
+                run[n ++] = loading;
+            }
+            if (n == 0) {
+                if (!contains(pgno)) {
+                    // 缓存已满且无法驱逐
+                    return;
+                }
+                pgno ++;
+                continue;
+            }
+            loadRun(pgno, n, run);
+            pgno += n;
+        }
+    }
+
+    /**
+     * 未写回的快照要在读文件之前取出: 读之后再查, 快照可能恰好在两者之间写回并移出脏页表,
+     * 而读到的是写回之前的旧内容
+     */
+    private void loadRun(int startPgno, int n, CompletableFuture<Page>[] run) {
+        byte[][] pending = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            pending[i] = flusher.pendingImage(startPgno + i);
+        }
+        ByteBuffer buf = readBuffer;
+        buf.clear();
+        buf.limit(n * PAGE_SIZE);
+        try {
+            readFully(buf, pageOffset(startPgno));
+        } catch (IOException e) {
+            for (int i = 0; i < n; i++) {
+                abortLoad(startPgno + i, run[i], e);
+            }
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            int pgno = startPgno + i;
+            ByteBuffer src;
+            if (pending[i] != null) {
+                src = ByteBuffer.wrap(pending[i]);
+            } else {
+                src = buf.duplicate();
+                src.limit((i + 1) * PAGE_SIZE);
+                src.position(i * PAGE_SIZE);
+                src = src.slice();
+            }
+            try {
+                completeLoad(pgno, run[i], wrapPage(pgno, src));
+            } catch (Exception e) {
+                abortLoad(pgno, run[i], e);
+            }
+        }
+    }
+
+    /**
+     * 用预读到的页面内容构造页面
+     * 校验失败的页面交给同步读路径报告
+     */
+    private Page wrapPage(int pgno, ByteBuffer src) throws Exception {
+        if (!PageTrailer.verify(src)) {
+            throw Error.CorruptedPageException;
+        }
+        if (pool != null) {
+            FramePage frame = pool.acquire(pgno);
+            frame.ioBuffer().put(src);
+            return frame;
+        }
+        byte[] data = new byte[PAGE_SIZE];
+        src.get(data);
+        return new PageImpl(pgno, data, this);
     }
 
     @Override
     public void close() {
+        prefetcher.shutdown();
+        try {
+            prefetcher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
         super.close();
+        flusher.close();
         try {
             fc.close();
             raf.close();
@@ -136,15 +444,31 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         release((long) page.getPageNumber());
     }
 
+    /**
+     * 截断前先丢弃页号大于 maxPgno 的缓存页面与待写快照, 否则之后的写回会让文件重新变长, 旧页面再次出现
+     * 调用方保证这些页面没有被引用
+     * @param maxPgno
+     */
     @Override
     public void truncateByPgno(int maxPgno) {
+        for (Page pg : discardIf(key -> key > maxPgno)) {
+            pg.setDirty(false);
+            if (pg instanceof FramePage) {
+                pool.release((FramePage) pg);
+            }
+        }
+        flusher.discardAbove(maxPgno);
+
         long size = pageOffset(maxPgno + 1);
+        newPageLock.lock();
         try {
             raf.setLength(size);
+            pageNumbers.set(maxPgno);
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            newPageLock.unlock();
         }
-        pageNumbers.set(maxPgno);
     }
 
     @Override
@@ -152,8 +476,44 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         return pageNumbers.intValue();
     }
 
+    /**
+     * 把页面交给后台线程写回, 并等待它所在的批次刷盘
+     * 在页面锁内先清除脏标记再拍快照, 驱逐或关闭时不再重复写回这次的内容.
+     * 修改者在写完数据之后还会再标一次脏 (见 DataItem.after), 快照没有包含的修改不会丢失脏标记
+     * @param page
+     */
     @Override
     public void flushPage(Page page) {
-        flush(page);
+        long seq;
+        page.lock();
+        try {
+            page.setDirty(false);
+            seq = flusher.enqueue(page);
+        } finally {
+            page.unlock();
+        }
+        flusher.awaitFlushed(seq);
+    }
+
+    /**
+     * 缓存中的脏页都交给后台线程, 再等待所有快照刷盘
+     * 在页面锁内判断是否为脏: 持有页面锁写日志的修改者可能还没有标脏
+     */
+    @Override
+    public void flushAll() {
+        for (Page pg : pinAll()) {
+            pg.lock();
+            try {
+                if (pg.isDirty()) {
+                    pg.setDirty(false);
+                    flusher.enqueue(pg);
+                }
+            } finally {
+                pg.unlock();
+                release(pg);
+            }
+        }
+        flusher.awaitAll();
     }
+
 }
@@ -0,0 +1,24 @@
+package com.wd.mydb.backend.dm.pageCache;
+
+/**
+ * PageCache 的实现方式
+ */
+public enum PageCacheType {
+
+    /**
+     * 缺页时从文件读入堆内数组, 即 PageCacheImpl
+     */
+    HEAP,
+
+    /**
+     * 按块映射整个数据库文件, 页面直接是映射上的视图, 即 MappedPageCacheImpl
+     * 适合数据库文件能放进操作系统页缓存的读多写少场景
+     */
+    MMAP,
+
+    /**
+     * 与 HEAP 相同的读写方式, 但页面数据放在按 memory 预分配的堆外帧池中, 缺页不产生堆内垃圾
+     * 需保证 -XX:MaxDirectMemorySize 不小于 memory
+     */
+    OFF_HEAP
+}
@@ -0,0 +1,281 @@
+package com.wd.mydb.backend.dm.pageCache;
+
+import com.wd.mydb.backend.dm.page.Page;
+import com.wd.mydb.backend.dm.page.PageTrailer;
+import com.wd.mydb.backend.utils.Buffers;
+import com.wd.mydb.backend.utils.Panic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.wd.mydb.backend.dm.pageCache.PageCache.PAGE_SIZE;
+
+/**
+ * 后台脏页写回线程
+ *
+ * 被驱逐或被要求刷盘的脏页先拷贝一份快照并封印页尾 CRC, 放入脏页表, 由后台线程批量写回:
+ * 每批按页号排序, 相邻页号合并成一次 gathering write, 整批只调用一次 force.
+ * 驱逐线程只做一次内存拷贝, 不再在前台等待 fsync.
+ *
+ * 快照在写回完成前一直可以通过 pendingImage 查到, 缺页时优先使用快照, 保证读到最新内容.
+ * 每个快照带有递增的序号, 需要持久化保证的调用方可以在 awaitFlushed 上等待自己的序号刷盘.
+ */
+class PageFlusher {
+
+    /**
+     * 未写回的快照数上限, 超过时入队方等待, 防止脏页表无限增长
+     */
+    private static final int MAX_PENDING = 1024;
+
+    private static final long IDLE_WAIT_MILLIS = 100;
+
+    private final FileChannel fc;
+
+    /**
+     * 待写回的快照, 按页号排序, 只在持有 lock 时访问
+     */
+    private TreeMap<Integer, Snapshot> queue = new TreeMap<>();
+
+    /**
+     * 所有尚未写回的快照 (包括正在写的批次), 供缺页路径无锁查询
+     */
+    private final ConcurrentHashMap<Integer, Snapshot> unflushed = new ConcurrentHashMap<>();
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+
+    /**
+     * 最后一个入队快照的序号, 与已经刷盘的最大序号
+     */
+    private long enqueuedSeq;
+    private long flushedSeq;
+
+    /**
+     * 正在写回的批次的序号, 只在持有 lock 时访问
+     */
+    private long writingSeq;
+
+    private boolean closed;
+    private final Thread worker;
+
+    PageFlusher(FileChannel fc) {
+        this.fc = fc;
+        this.worker = new Thread(this::run, "mydb-page-flusher");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * 拷贝页面当前内容并放入脏页表, 返回该快照的序号
+     * 同一页面较早的未写快照会被替换
+     * @param pg
+     * @return
+     */
+    long enqueue(Page pg) {
+        byte[] image = new byte[PAGE_SIZE];
+        Buffers.get(pg.getBuffer(), 0, image);
+        PageTrailer.seal(image);
+        int pgno = pg.getPageNumber();
+
+        lock.lock();
+        try {
+            while (queue.size() >= MAX_PENDING && !queue.containsKey(pgno)) {
+                notFull.awaitUninterruptibly();
+            }
+            Snapshot snap = new Snapshot(pgno, image, ++enqueuedSeq);
+            queue.put(pgno, snap);
+            unflushed.put(pgno, snap);
+            notEmpty.signal();
+            return snap.seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 尚未写回的页面内容, 没有时返回 null
+     * @param pgno
+     * @return
+     */
+    byte[] pendingImage(int pgno) {
+        Snapshot snap = unflushed.get(pgno);
+        return snap == null ? null : snap.image;
+    }
+
+    /**
+     * 刷盘屏障: 等待序号不大于 seq 的快照全部刷盘
+     * @param seq
+     */
+    void awaitFlushed(long seq) {
+        lock.lock();
+        try {
+            while (flushedSeq < seq) {
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 刷盘屏障: 等待目前已经入队的所有快照刷盘
+     */
+    void awaitAll() {
+        long seq;
+        lock.lock();
+        try {
+            seq = enqueuedSeq;
+        } finally {
+            lock.unlock();
+        }
+        awaitFlushed(seq);
+    }
+
+    /**
+     * 丢弃页号大于 maxPgno 的待写快照, 并等待正在写的批次完成
+     * 返回后不会再有页号大于 maxPgno 的写入, 调用方可以安全地截断文件
+     * @param maxPgno
+     */
+    void discardAbove(int maxPgno) {
+        lock.lock();
+        try {
+            queue.tailMap(maxPgno, false).clear();
+            unflushed.keySet().removeIf(pgno -> pgno > maxPgno);
+            notFull.signalAll();
+            long writing = writingSeq;
+            while (flushedSeq < writing) {
+                flushed.awaitUninterruptibly();
+            }
+            // 没有待写与正在写的批次时, 剩下未刷盘的序号都属于被丢弃的快照, 不能让等待它们的调用方永远阻塞
+            if (queue.isEmpty() && writingSeq <= flushedSeq && flushedSeq < enqueuedSeq) {
+                flushedSeq = enqueuedSeq;
+                flushed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 写回所有快照并停止后台线程
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            TreeMap<Integer, Snapshot> batch;
+            long batchSeq;
+            lock.lock();
+            try {
+                while (queue.isEmpty() && !closed) {
+                    notEmpty.await(IDLE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                batch = queue;
+                batchSeq = enqueuedSeq;
+                writingSeq = batchSeq;
+                queue = new TreeMap<>();
+                notFull.signalAll();
+            } catch (InterruptedException e) {
+                continue;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                writeBatch(batch);
+                fc.force(false);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+
+            for (Snapshot snap : batch.values()) {
+                unflushed.remove(snap.pgno, snap);
+            }
+            lock.lock();
+            try {
+                flushedSeq = batchSeq;
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 按页号顺序写出一批快照, 连续的页面合并为一次写
+     * @param batch
+     * @throws IOException
+     */
+    private void writeBatch(TreeMap<Integer, Snapshot> batch) throws IOException {
+        List<ByteBuffer> run = new ArrayList<>();
+        int runStart = 0;
+        int prev = 0;
+        for (Map.Entry<Integer, Snapshot> entry : batch.entrySet()) {
+            int pgno = entry.getKey();
+            if (!run.isEmpty() && pgno != prev + 1) {
+                writeRun(runStart, run);
+                run.clear();
+            }
+            if (run.isEmpty()) {
+                runStart = pgno;
+            }
+            run.add(ByteBuffer.wrap(entry.getValue().image));
+            prev = pgno;
+        }
+        if (!run.isEmpty()) {
+            writeRun(runStart, run);
+        }
+    }
+
+    /**
+     * 只有本线程会移动 fc 的共享位置, 其余读写都是带 position 的
+     */
+    private void writeRun(int startPgno, List<ByteBuffer> run) throws IOException {
+        ByteBuffer[] bufs = run.toArray(new ByteBuffer[0]);
+        long remaining = (long) bufs.length * PAGE_SIZE;
+        fc.position((long) (startPgno - 1) * PAGE_SIZE);
+        while (remaining > 0) {
+            remaining -= fc.write(bufs);
+        }
+    }
+
+    private static class Snapshot {
+        final int pgno;
+        final byte[] image;
+        final long seq;
+
+        Snapshot(int pgno, byte[] image, long seq) {
+            this.pgno = pgno;
+            this.image = image;
+            this.seq = seq;
+        }
+    }
+}
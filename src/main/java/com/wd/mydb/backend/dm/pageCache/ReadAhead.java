@@ -0,0 +1,71 @@
+package com.wd.mydb.backend.dm.pageCache;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 顺序访问检测与预读窗口
+ *
+ * 连续 SEQ_THRESHOLD 次访问相邻页号后认为进入顺序扫描, 预读 [当前页 + 1, + window) 的页面.
+ * 扫描进入刚预读的窗口 (到达 mark) 时预读下一个窗口, 预读总是领先扫描一个窗口,
+ * 每次预读后窗口翻倍, 直到 MAX_WINDOW. 访问不再相邻时窗口回到 MIN_WINDOW.
+ *
+ * 状态只在持有锁时修改, 拿不到锁的访问直接跳过检测, 不在 getPage 的热路径上等待.
+ * 多个扫描交错访问时检测会失效, 退化为同步读.
+ */
+class ReadAhead {
+
+    static final int MIN_WINDOW = 8;
+    static final int MAX_WINDOW = 256;
+
+    private static final int SEQ_THRESHOLD = 2;
+
+    private final Lock lock = new ReentrantLock();
+
+    private int last;
+    private int sequential;
+    private int window = MIN_WINDOW;
+
+    /**
+     * 已经预读到的最后一页, 0 表示没有预读
+     */
+    private int end;
+
+    /**
+     * 扫描到达该页时发起下一次预读
+     */
+    private int mark;
+
+    /**
+     * 记录一次访问, 需要预读时返回 {起始页号, 页数}, 否则返回 null
+     * @param pgno
+     * @return
+     */
+    int[] onAccess(int pgno) {
+        if (!lock.tryLock()) {
+            return null;
+        }
+        try {
+            if (pgno == last + 1) {
+                sequential ++;
+            } else if (pgno != last) {
+                sequential = 0;
+                window = MIN_WINDOW;
+                end = 0;
+                mark = 0;
+            }
+            last = pgno;
+            if (sequential < SEQ_THRESHOLD || (end != 0 && pgno < mark)) {
+                return null;
+            }
+            int from = Math.max(pgno + 1, end + 1);
+            int[] range = {from, window};
+            mark = from;
+            end = from + window - 1;
+            window = Math.min(window * 2, MAX_WINDOW);
+            return range;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
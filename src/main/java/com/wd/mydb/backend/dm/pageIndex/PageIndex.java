@@ -0,0 +1,113 @@
+package com.wd.mydb.backend.dm.pageIndex;
+
+import com.wd.mydb.backend.dm.pageCache.PageCache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 页面空闲空间索引
+ *
+ * 将一页的空间划分成 INTERVALS_NO 个区间, 空闲空间落在第 i 个区间的页面放入第 i 个桶.
+ * 插入时从能容纳所需空间的最小的桶开始找, 桶的个数是常数, 不需要扫描页面.
+ * 被 select 选中的页面从索引中移除, 同一页面不会被并发选中;
+ * 使用完后调用方需要用新的空闲空间把页面 add 回来.
+ * 删除或缩短记录后也可以直接 add, 同一页面只保留最新的空闲空间.
+ */
+public class PageIndex {
+
+    /**
+     * 将一页划分成 40 个区间
+     */
+    private static final int INTERVALS_NO = 40;
+    private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
+
+    private Lock lock;
+    private LinkedHashSet<PageInfo>[] lists;
+
+    /**
+     * 当前在索引中的页面
+     */
+    private Map<Integer, PageInfo> pages;
+
+    @SuppressWarnings("unchecked")
+    public PageIndex() {
+        lock = new ReentrantLock();
+        lists = (LinkedHashSet<PageInfo>[]) new LinkedHashSet<?>[INTERVALS_NO + 1];
+        for (int i = 0; i < INTERVALS_NO + 1; i++) {
+            lists[i] = new LinkedHashSet<>();
+        }
+        pages = new HashMap<>();
+    }
+
+    /**
+     * 记录页面 pgno 的空闲空间
+     * @param pgno
+     * @param freeSpace
+     */
+    public void add(int pgno, int freeSpace) {
+        lock.lock();
+        try {
+            PageInfo old = pages.remove(pgno);
+            if (old != null) {
+                lists[bucket(old.freeSpace)].remove(old);
+            }
+            PageInfo pi = new PageInfo(pgno, freeSpace);
+            lists[bucket(freeSpace)].add(pi);
+            pages.put(pgno, pi);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出一个空闲空间不小于 spaceSize 的页面, 没有时返回 null
+     * 从下一个区间开始找, 保证桶中任意页面都放得下
+     * @param spaceSize
+     * @return
+     */
+    public PageInfo select(int spaceSize) {
+        lock.lock();
+        try {
+            int number = spaceSize / THRESHOLD;
+            if (number < INTERVALS_NO) {
+                number ++;
+            }
+            while (number < INTERVALS_NO) {
+                if (lists[number].isEmpty()) {
+                    number ++;
+                    continue;
+                }
+                return take(lists[number].iterator());
+            }
+            // 最后一个桶的下界可能小于 spaceSize, 需要逐个检查
+            return take(lists[INTERVALS_NO].iterator(), spaceSize);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private PageInfo take(Iterator<PageInfo> it) {
+        return take(it, 0);
+    }
+
+    private PageInfo take(Iterator<PageInfo> it, int spaceSize) {
+        while (it.hasNext()) {
+            PageInfo pi = it.next();
+            if (pi.freeSpace >= spaceSize) {
+                it.remove();
+                pages.remove(pi.pgno);
+                return pi;
+            }
+        }
+        return null;
+    }
+
+    private static int bucket(int freeSpace) {
+        return Math.min(freeSpace / THRESHOLD, INTERVALS_NO);
+    }
+}
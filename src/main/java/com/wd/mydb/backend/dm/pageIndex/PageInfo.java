@@ -0,0 +1,11 @@
+package com.wd.mydb.backend.dm.pageIndex;
+
+public class PageInfo {
+    public int pgno;
+    public int freeSpace;
+
+    public PageInfo(int pgno, int freeSpace) {
+        this.pgno = pgno;
+        this.freeSpace = freeSpace;
+    }
+}
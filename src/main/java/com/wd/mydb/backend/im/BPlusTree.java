@@ -0,0 +1,238 @@
+package com.wd.mydb.backend.im;
+
+import com.wd.mydb.backend.dm.page.Page;
+import com.wd.mydb.backend.dm.pageCache.PageCache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.wd.mydb.backend.dm.pageCache.PageCache.PAGE_SIZE;
+
+/**
+ * B-link 树 (Lehman-Yao)
+ *
+ * 每个节点是 PageCache 中的一页, 同层节点通过右兄弟指针相连, 节点带有上界 (见 Node).
+ * 任何时刻最多持有一个节点的页面锁:
+ * 下降时锁住节点, 选出子节点后先放锁再锁子节点; 要找的键不小于节点上界时, 说明节点已经分裂, 沿右兄弟向右移动.
+ * 插入在叶子上分裂时, 先写出新的右节点, 再在锁内把它链到原节点右侧, 放锁后才把分隔键插入父节点,
+ * 这期间其他线程通过右兄弟指针仍能找到新节点, 因此并发插入不会在根上串行.
+ * 根分裂时新根的第 0 项指向原来的根, 它是该层最左的节点, 同层的其他节点都可以通过右兄弟找到.
+ *
+ * 元数据页
+ * [Marker] [Root] [RootLevel]
+ * Marker: 2字节, 固定为 0xFFFD
+ * Root: 4字节, 根节点的页号
+ * RootLevel: 1字节, 根节点的层数
+ *
+ * 节点只在 PageCache 中修改, 不写日志, 异常关闭后需要从表中重建索引.
+ * 树需要独占一个 PageCache, DataManager 的恢复会按日志截断它的页面文件.
+ */
+public class BPlusTree {
+
+    private static final short META_MARKER = (short) 0xFFFD;
+    private static final int OF_ROOT = 2;
+    private static final int OF_ROOT_LEVEL = 6;
+
+    private PageCache pc;
+    private Page metaPage;
+
+    /**
+     * 根节点的页号, 只在持有 rootLock 时修改
+     */
+    private volatile int root;
+    private Lock rootLock;
+
+    /**
+     * 新建一棵只有一个空叶子的树, 返回元数据页的页号
+     * @param pc
+     * @return
+     */
+    public static int create(PageCache pc) {
+        int leaf = pc.newPage(Node.newRaw(0, 0, 0, 0));
+        byte[] meta = new byte[PAGE_SIZE];
+        ByteBuffer buf = ByteBuffer.wrap(meta);
+        buf.putShort(0, META_MARKER);
+        buf.putInt(OF_ROOT, leaf);
+        buf.put(OF_ROOT_LEVEL, (byte) 0);
+        return pc.newPage(meta);
+    }
+
+    public static BPlusTree load(int metaPgno, PageCache pc) throws Exception {
+        BPlusTree t = new BPlusTree();
+        t.pc = pc;
+        t.metaPage = pc.getPage(metaPgno);
+        t.root = t.metaPage.getBuffer().getInt(OF_ROOT);
+        t.rootLock = new ReentrantLock();
+        return t;
+    }
+
+    public List<Long> search(long key) throws Exception {
+        return searchRange(key, key);
+    }
+
+    /**
+     * 查找 key 在 [leftKey, rightKey] 中的所有 uid, 按 (key, uid) 排序
+     * 逐个叶子在锁内读取, 读完一个叶子后才读它的右兄弟, 并发的分裂只会把项移到还没读的右侧
+     * @param leftKey
+     * @param rightKey
+     * @return
+     * @throws Exception
+     */
+    public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        Page pg = descend(leftKey, Long.MIN_VALUE, 0, null);
+        while (true) {
+            ByteBuffer buf = pg.getBuffer();
+            int n = Node.getNKeys(buf);
+            for (int i = Node.lowerBound(buf, leftKey, Long.MIN_VALUE); i < n; i++) {
+                if (Node.getKey(buf, i) > rightKey) {
+                    unlockRelease(pg);
+                    return uids;
+                }
+                uids.add(Node.getUid(buf, i));
+            }
+            int next = Node.getSibling(buf);
+            unlockRelease(pg);
+            if (next == 0) {
+                return uids;
+            }
+            pg = lockPage(next);
+        }
+    }
+
+    /**
+     * 插入 (key, uid), 已存在时什么也不做
+     * @param key
+     * @param uid
+     * @throws Exception
+     */
+    public void insert(long key, long uid) throws Exception {
+        Deque<Integer> path = new ArrayDeque<>();
+        Page leaf = descend(key, uid, 0, path);
+        insertAt(leaf, key, uid, 0, path);
+    }
+
+    public void close() {
+        metaPage.release();
+    }
+
+    /**
+     * 从根向下找到第 level 层应当包含 (key, uid) 的节点, 返回时持有该页面的引用和锁
+     * @param path 不为 null 时记录经过的上层节点, 栈顶是最近的一层
+     */
+    private Page descend(long key, long uid, int level, Deque<Integer> path) throws Exception {
+        int pgno = root;
+        while (true) {
+            Page pg = lockPage(pgno);
+            ByteBuffer buf = pg.getBuffer();
+            if (Node.shouldMoveRight(buf, key, uid)) {
+                pgno = Node.getSibling(buf);
+                unlockRelease(pg);
+                continue;
+            }
+            if (Node.getLevel(buf) == level) {
+                return pg;
+            }
+            if (path != null) {
+                path.push(pgno);
+            }
+            pgno = Node.findChild(buf, key, uid);
+            unlockRelease(pg);
+        }
+    }
+
+    /**
+     * 把一项插入已加锁的节点 pg 所在的层, 节点已满时分裂, 并把分隔键插入上一层
+     * 返回时已经放开所有页面
+     * @param pg
+     * @param key
+     * @param uid
+     * @param child 叶子中忽略
+     * @param path
+     * @throws Exception
+     */
+    private void insertAt(Page pg, long key, long uid, int child, Deque<Integer> path) throws Exception {
+        ByteBuffer buf = pg.getBuffer();
+        while (Node.shouldMoveRight(buf, key, uid)) {
+            int next = Node.getSibling(buf);
+            unlockRelease(pg);
+            pg = lockPage(next);
+            buf = pg.getBuffer();
+        }
+        if (Node.contains(buf, key, uid)) {
+            unlockRelease(pg);
+            return;
+        }
+
+        pg.setDirty(true);
+        if (!Node.isFull(buf)) {
+            Node.insert(buf, key, uid, child);
+            unlockRelease(pg);
+            return;
+        }
+
+        int level = Node.getLevel(buf);
+        byte[] rightRaw = Node.splitRight(buf);
+        ByteBuffer right = ByteBuffer.wrap(rightRaw);
+        long sepKey = Node.getKey(right, 0);
+        long sepUid = Node.getUid(right, 0);
+        if (Node.compare(key, uid, sepKey, sepUid) >= 0) {
+            Node.insert(right, key, uid, child);
+        } else {
+            Node.insert(buf, key, uid, child);
+        }
+        int rightPgno = pc.newPage(rightRaw);
+        Node.linkRight(buf, rightPgno, rightRaw);
+        unlockRelease(pg);
+
+        insertSeparator(level + 1, sepKey, sepUid, rightPgno, path);
+    }
+
+    /**
+     * 把指向新节点 child 的分隔键插入第 level 层
+     * 下降路径已经用完时, 若分裂的是根则新建根, 否则说明树已经长高, 从新根重新下降到第 level 层
+     */
+    private void insertSeparator(int level, long key, long uid, int child, Deque<Integer> path) throws Exception {
+        Page pg;
+        if (!path.isEmpty()) {
+            pg = lockPage(path.pop());
+        } else {
+            rootLock.lock();
+            try {
+                ByteBuffer meta = metaPage.getBuffer();
+                if (meta.get(OF_ROOT_LEVEL) == level - 1) {
+                    byte[] raw = Node.newRaw(level, 0, 0, 0);
+                    ByteBuffer buf = ByteBuffer.wrap(raw);
+                    Node.insert(buf, Long.MIN_VALUE, Long.MIN_VALUE, root);
+                    Node.insert(buf, key, uid, child);
+                    int newRoot = pc.newPage(raw);
+                    metaPage.setDirty(true);
+                    meta.putInt(OF_ROOT, newRoot);
+                    meta.put(OF_ROOT_LEVEL, (byte) level);
+                    root = newRoot;
+                    return;
+                }
+            } finally {
+                rootLock.unlock();
+            }
+            pg = descend(key, uid, level, path);
+        }
+        insertAt(pg, key, uid, child, path);
+    }
+
+    private Page lockPage(int pgno) throws Exception {
+        Page pg = pc.getPage(pgno);
+        pg.lock();
+        return pg;
+    }
+
+    private static void unlockRelease(Page pg) {
+        pg.unlock();
+        pg.release();
+    }
+}
@@ -0,0 +1,225 @@
+package com.wd.mydb.backend.im;
+
+import com.wd.mydb.backend.dm.page.PageTrailer;
+import com.wd.mydb.backend.utils.Buffers;
+
+import java.nio.ByteBuffer;
+
+import static com.wd.mydb.backend.dm.pageCache.PageCache.PAGE_SIZE;
+
+/**
+ * Node 管理 B+ 树的一个节点, 一个节点占一页
+ * 节点结构
+ * [Marker] [Level] [NKeys] [Sibling] [HighKey] [HighUid] [Entry0] [Entry1] ...
+ * Marker: 2字节, 固定为 0xFFFE, 不会被当作 PageX 的 FSO
+ * Level: 1字节, 叶子为 0, 向上递增
+ * NKeys: 2字节, 项数
+ * Sibling: 4字节, 同层右兄弟的页号, 0 表示最右的节点
+ * HighKey, HighUid: 各8字节, 节点的上界 (不含), 只在有右兄弟时有效
+ * 叶子的项为 [Key 8字节] [Uid 8字节], 内部节点的项为 [Key 8字节] [Uid 8字节] [Child 4字节],
+ * 内部节点第 i 项的子节点包含 [项i, 项i+1) 的键, 第 0 项即节点的下界.
+ *
+ * 项按 (Key, Uid) 排序, 相同的 Key 以 Uid 区分, 因此树中没有重复的项,
+ * 分裂点两侧不会出现相同的 (Key, Uid).
+ * 所有操作都通过 Page.getBuffer() 视图完成, 调用方需持有页面锁.
+ */
+class Node {
+
+    static final short MARKER = (short) 0xFFFE;
+
+    private static final int OF_MARKER = 0;
+    private static final int OF_LEVEL = 2;
+    private static final int OF_NKEYS = 3;
+    private static final int OF_SIBLING = 5;
+    private static final int OF_HIGH_KEY = 9;
+    private static final int OF_HIGH_UID = 17;
+    private static final int OF_ENTRIES = 25;
+
+    private static final int LEAF_ENTRY = 16;
+    private static final int INTERNAL_ENTRY = 20;
+
+    private static final int DATA_END = PageTrailer.DATA_END;
+
+    static byte[] newRaw(int level, int sibling, long highKey, long highUid) {
+        byte[] raw = new byte[PAGE_SIZE];
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        buf.putShort(OF_MARKER, MARKER);
+        buf.put(OF_LEVEL, (byte) level);
+        setNKeys(buf, 0);
+        setSibling(buf, sibling);
+        setHigh(buf, highKey, highUid);
+        return raw;
+    }
+
+    static int getLevel(ByteBuffer buf) {
+        return buf.get(OF_LEVEL);
+    }
+
+    static int getNKeys(ByteBuffer buf) {
+        return Short.toUnsignedInt(buf.getShort(OF_NKEYS));
+    }
+
+    static void setNKeys(ByteBuffer buf, int n) {
+        buf.putShort(OF_NKEYS, (short) n);
+    }
+
+    static int getSibling(ByteBuffer buf) {
+        return buf.getInt(OF_SIBLING);
+    }
+
+    static void setSibling(ByteBuffer buf, int pgno) {
+        buf.putInt(OF_SIBLING, pgno);
+    }
+
+    static void setHigh(ByteBuffer buf, long key, long uid) {
+        buf.putLong(OF_HIGH_KEY, key);
+        buf.putLong(OF_HIGH_UID, uid);
+    }
+
+    static long getKey(ByteBuffer buf, int i) {
+        return buf.getLong(entryOffset(buf, i));
+    }
+
+    static long getUid(ByteBuffer buf, int i) {
+        return buf.getLong(entryOffset(buf, i) + 8);
+    }
+
+    static int getChild(ByteBuffer buf, int i) {
+        return buf.getInt(entryOffset(buf, i) + 16);
+    }
+
+    /**
+     * 节点最多能容纳的项数
+     * @param level
+     * @return
+     */
+    static int capacity(int level) {
+        return (DATA_END - OF_ENTRIES) / entrySize(level);
+    }
+
+    static boolean isFull(ByteBuffer buf) {
+        return getNKeys(buf) >= capacity(getLevel(buf));
+    }
+
+    /**
+     * (key, uid) 不小于节点的上界, 说明节点已经分裂, 要找的项在右兄弟中
+     * @param buf
+     * @param key
+     * @param uid
+     * @return
+     */
+    static boolean shouldMoveRight(ByteBuffer buf, long key, long uid) {
+        return getSibling(buf) != 0
+                && compare(key, uid, buf.getLong(OF_HIGH_KEY), buf.getLong(OF_HIGH_UID)) >= 0;
+    }
+
+    /**
+     * 第一个不小于 (key, uid) 的项的位置
+     * @param buf
+     * @param key
+     * @param uid
+     * @return
+     */
+    static int lowerBound(ByteBuffer buf, long key, long uid) {
+        int lo = 0, hi = getNKeys(buf);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(getKey(buf, mid), getUid(buf, mid), key, uid) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * 内部节点中包含 (key, uid) 的子节点
+     * @param buf
+     * @param key
+     * @param uid
+     * @return
+     */
+    static int findChild(ByteBuffer buf, long key, long uid) {
+        int i = lowerBound(buf, key, uid);
+        if (i == getNKeys(buf) || compare(getKey(buf, i), getUid(buf, i), key, uid) > 0) {
+            i --;
+        }
+        return getChild(buf, Math.max(i, 0));
+    }
+
+    /**
+     * 在有序位置插入一项, 调用方已确认节点未满, 且节点中没有相同的 (key, uid)
+     * @param buf
+     * @param key
+     * @param uid
+     * @param child 叶子中忽略
+     */
+    static void insert(ByteBuffer buf, long key, long uid, int child) {
+        int n = getNKeys(buf);
+        int i = lowerBound(buf, key, uid);
+        int size = entrySize(getLevel(buf));
+        int off = OF_ENTRIES + i * size;
+        Buffers.copy(buf, off, off + size, (n - i) * size);
+        putEntry(buf, off, key, uid, child);
+        setNKeys(buf, n + 1);
+    }
+
+    /**
+     * 节点中是否已有 (key, uid)
+     */
+    static boolean contains(ByteBuffer buf, long key, long uid) {
+        int i = lowerBound(buf, key, uid);
+        return i < getNKeys(buf) && getKey(buf, i) == key && getUid(buf, i) == uid;
+    }
+
+    /**
+     * 分裂节点: 后一半的项移入新节点的页面内容中, 新节点继承原节点的右兄弟与上界
+     * 原节点的 Sibling 与上界由调用方在新节点分配页号后通过 linkRight 设置
+     * @param buf
+     * @return 新节点的页面内容
+     */
+    static byte[] splitRight(ByteBuffer buf) {
+        int n = getNKeys(buf);
+        int mid = n / 2;
+        int size = entrySize(getLevel(buf));
+        byte[] raw = newRaw(getLevel(buf), getSibling(buf), buf.getLong(OF_HIGH_KEY), buf.getLong(OF_HIGH_UID));
+        Buffers.get(buf, OF_ENTRIES + mid * size, raw, OF_ENTRIES, (n - mid) * size);
+        setNKeys(ByteBuffer.wrap(raw), n - mid);
+        setNKeys(buf, mid);
+        return raw;
+    }
+
+    /**
+     * 把 right 设为原节点的右兄弟, right 的第一项即原节点新的上界
+     * @param buf
+     * @param rightPgno
+     * @param rightRaw
+     */
+    static void linkRight(ByteBuffer buf, int rightPgno, byte[] rightRaw) {
+        ByteBuffer right = ByteBuffer.wrap(rightRaw);
+        setSibling(buf, rightPgno);
+        setHigh(buf, getKey(right, 0), getUid(right, 0));
+    }
+
+    static int compare(long k1, long u1, long k2, long u2) {
+        int c = Long.compare(k1, k2);
+        return c != 0 ? c : Long.compare(u1, u2);
+    }
+
+    private static void putEntry(ByteBuffer buf, int off, long key, long uid, int child) {
+        buf.putLong(off, key);
+        buf.putLong(off + 8, uid);
+        if (getLevel(buf) > 0) {
+            buf.putInt(off + 16, child);
+        }
+    }
+
+    private static int entryOffset(ByteBuffer buf, int i) {
+        return OF_ENTRIES + i * entrySize(getLevel(buf));
+    }
+
+    private static int entrySize(int level) {
+        return level == 0 ? LEAF_ENTRY : INTERNAL_ENTRY;
+    }
+}
@@ -0,0 +1,70 @@
+package com.wd.mydb.backend.server;
+
+import com.wd.mydb.backend.vm.VersionManager;
+import com.wd.mydb.common.Error;
+import com.wd.mydb.transport.Request;
+import com.wd.mydb.transport.Response;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 一个连接上的请求执行器, 在 VM 上执行请求并生成响应
+ * 只允许操作本连接开启的事务, 连接断开时回滚其中还未结束的事务
+ * 同一连接的请求由 Session 保证串行执行, 因此不需要加锁
+ */
+public class Executor {
+
+    private final VersionManager vm;
+    private final Set<Long> xids;
+
+    public Executor(VersionManager vm) {
+        this.vm = vm;
+        this.xids = new HashSet<>();
+    }
+
+    public Response execute(Request req) {
+        try {
+            if (req.op != Request.BEGIN && !xids.contains(req.xid)) {
+                throw Error.NoTransactionException;
+            }
+            switch (req.op) {
+                case Request.BEGIN: {
+                    long xid = vm.begin((int) req.arg);
+                    xids.add(xid);
+                    return Response.ok(req.id, xid);
+                }
+                case Request.COMMIT:
+                    vm.commit(req.xid);
+                    xids.remove(req.xid);
+                    return Response.ok(req.id, 0);
+                case Request.ABORT:
+                    vm.abort(req.xid);
+                    xids.remove(req.xid);
+                    return Response.ok(req.id, 0);
+                case Request.READ: {
+                    byte[] data = vm.read(req.xid, req.arg);
+                    return data == null ? Response.nil(req.id) : Response.ok(req.id, data);
+                }
+                case Request.INSERT:
+                    return Response.ok(req.id, vm.insert(req.xid, req.data));
+                case Request.DELETE:
+                    return Response.ok(req.id, vm.delete(req.xid, req.arg) ? 1 : 0);
+                default:
+                    throw Error.InvalidPkgDataException;
+            }
+        } catch (Exception e) {
+            return Response.error(req.id, e);
+        }
+    }
+
+    /**
+     * 回滚本连接上还未结束的事务
+     */
+    public void close() {
+        for (long xid : xids) {
+            vm.abort(xid);
+        }
+        xids.clear();
+    }
+}
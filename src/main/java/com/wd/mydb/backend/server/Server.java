@@ -0,0 +1,95 @@
+package com.wd.mydb.backend.server;
+
+import com.wd.mydb.backend.vm.VersionManager;
+import com.wd.mydb.transport.Codec;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于 Netty 的服务端
+ * IO 由 boss / worker 事件循环处理, 请求在固定大小的执行线程池中执行, 见 Session.
+ * 每个连接在线程池中最多排队一个任务, 因此任务队列的长度不超过连接数.
+ * 等待记录锁的请求会占住一个执行线程, 但最多等待 LockTable 的锁等待超时, 超时的事务被回滚,
+ * 因此线程池不会被等锁的请求永久占满
+ */
+public class Server {
+
+    private final int port;
+    private final VersionManager vm;
+    private final int executorThreads;
+
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private ExecutorService executors;
+    private Channel channel;
+
+    public Server(int port, VersionManager vm) {
+        this(port, vm, Math.max(16, Runtime.getRuntime().availableProcessors() * 4));
+    }
+
+    public Server(int port, VersionManager vm, int executorThreads) {
+        this.port = port;
+        this.vm = vm;
+        this.executorThreads = executorThreads;
+    }
+
+    /**
+     * 绑定端口并开始接收连接, 不阻塞
+     * @throws InterruptedException
+     */
+    public void start() throws InterruptedException {
+        bossGroup = new NioEventLoopGroup(1);
+        workerGroup = new NioEventLoopGroup();
+        AtomicInteger n = new AtomicInteger();
+        executors = new ThreadPoolExecutor(executorThreads, executorThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "mydb-executor-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+
+        ServerBootstrap b = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        Codec.initServer(ch.pipeline());
+                        ch.pipeline().addLast("session", new Session(vm, executors));
+                    }
+                });
+        channel = b.bind(port).sync().channel();
+    }
+
+    /**
+     * 阻塞直到服务端被关闭
+     * @throws InterruptedException
+     */
+    public void awaitClose() throws InterruptedException {
+        channel.closeFuture().sync();
+    }
+
+    public void close() {
+        channel.close().syncUninterruptibly();
+        bossGroup.shutdownGracefully();
+        workerGroup.shutdownGracefully().syncUninterruptibly();
+        executors.shutdown();
+        try {
+            executors.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ignored) {
+        }
+    }
+}
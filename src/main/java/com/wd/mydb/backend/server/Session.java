@@ -0,0 +1,122 @@
+package com.wd.mydb.backend.server;
+
+import com.wd.mydb.backend.vm.VersionManager;
+import com.wd.mydb.transport.Request;
+import com.wd.mydb.transport.Response;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import java.util.ArrayDeque;
+
+/**
+ * 一个连接的会话
+ *
+ * 事件循环只负责解码和入队, 请求在工作线程池中执行, 不阻塞 IO.
+ * 客户端可以不等响应连续发送请求 (流水线), 同一连接的请求按到达顺序串行执行,
+ * 任一时刻每个连接最多占用一个工作线程, 不同连接并行执行.
+ * 响应按顺序写回, 连续执行的一批请求合并 flush.
+ * 排队的请求超过 HIGH_WATER 时停止从连接读取, 降到 LOW_WATER 时恢复, 由 TCP 对客户端施加背压
+ */
+class Session extends ChannelInboundHandlerAdapter {
+
+    private static final int HIGH_WATER = 1024;
+    private static final int LOW_WATER = 256;
+
+    /**
+     * 一批请求中最多执行多少个才 flush 一次
+     */
+    private static final int FLUSH_BATCH = 64;
+
+    private final Executor executor;
+    private final java.util.concurrent.Executor workers;
+
+    /**
+     * 以下字段由 this 保护
+     */
+    private final ArrayDeque<Request> pending = new ArrayDeque<>();
+    private boolean running;
+    private boolean closed;
+
+    private volatile ChannelHandlerContext ctx;
+
+    Session(VersionManager vm, java.util.concurrent.Executor workers) {
+        this.executor = new Executor(vm);
+        this.workers = workers;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        boolean start;
+        synchronized (this) {
+            pending.addLast((Request) msg);
+            if (pending.size() >= HIGH_WATER) {
+                ctx.channel().config().setAutoRead(false);
+            }
+            start = !running;
+            running = true;
+        }
+        if (start) {
+            workers.execute(this::drain);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        boolean start;
+        synchronized (this) {
+            closed = true;
+            start = !running;
+            running = true;
+        }
+        if (start) {
+            workers.execute(this::drain);
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ctx.close();
+    }
+
+    /**
+     * 在工作线程中依次执行排队的请求, 队列为空时退出
+     */
+    private void drain() {
+        int unflushed = 0;
+        while (true) {
+            Request req;
+            boolean close = false;
+            synchronized (this) {
+                req = pending.pollFirst();
+                if (req == null) {
+                    running = false;
+                    close = closed;
+                } else if (pending.size() == LOW_WATER) {
+                    ctx.channel().config().setAutoRead(true);
+                }
+            }
+            if (req == null) {
+                if (close) {
+                    executor.close();
+                } else if (unflushed > 0) {
+                    ctx.flush();
+                }
+                return;
+            }
+
+            Response res = executor.execute(req);
+            ctx.write(res);
+            if (++unflushed >= FLUSH_BATCH) {
+                ctx.flush();
+                unflushed = 0;
+            }
+        }
+    }
+}
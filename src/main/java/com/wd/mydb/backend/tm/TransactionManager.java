@@ -23,6 +23,12 @@ public interface TransactionManager {
     boolean isCommitted(long xid);  // 查询一个事物的状态是否是已提交
     boolean isAborted(long xid);  // 查询一个事物d的状态是否是已取消
     void close();  // 关闭 TM
+
+    /**
+     * 把低水位 (最早的可能仍在进行的事务之前) 以下的事务状态移出 XID 文件,
+     * 只保留其中 aborted 的 XID, 使 XID 文件与内存占用只与近期的事务数有关
+     */
+    void compact();
     
     static TransactionManagerImpl create(String path) {
         File f = new File(path + XID_SUFFIX);
@@ -55,7 +61,7 @@ public interface TransactionManager {
             Panic.panic(e);
         }
         
-        return new TransactionManagerImpl(raf, fc);
+        return new TransactionManagerImpl(f, raf, fc);
     }
     
     static TransactionManagerImpl open(String path) {
@@ -76,6 +82,6 @@ public interface TransactionManager {
             Panic.panic(e);
         }
         
-        return new TransactionManagerImpl(raf, fc);
+        return new TransactionManagerImpl(f, raf, fc);
     }
 }
@@ -1,19 +1,45 @@
 package com.wd.mydb.backend.tm;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.wd.mydb.common.Error;
 import com.wd.mydb.backend.utils.Panic;
-import com.wd.mydb.backend.utils.Parser;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
-import io.netty.buffer.Unpooled;
-
 
+/**
+ * 事务管理
+ *
+ * 所有事务的状态在打开时读入内存中的 XidStatusTable, isActive/isCommitted/isAborted 只读内存.
+ * XID 文件仍是状态的持久化副本, 写入都是带 position 的, 不同事务的写互不干扰.
+ *
+ * XID 由 AtomicLong 分配, 不加锁. 文件头记录的是已经预留的最大 XID,
+ * 每次预留 XID_RESERVE 个, 预留时先把这一段的状态全部写成 aborted 并 force, 再更新文件头.
+ * 因此 begin 通常不写文件; 崩溃后, 预留段中没有提交的 XID (包括从未被分配的) 都读作 aborted.
+ * abort 只写入页缓存不 force; commit 在返回前必须持久化, 并发的 commit 通过组 force 合并成一次 fsync.
+ * commit 的状态在 force 之后才对其他事务可见.
+ *
+ * 低水位 (low-water mark) 以下的 XID 都已经结束, 不再逐个保存状态:
+ * 它们默认是 committed, 其中 aborted 的 XID 按连续区间保存在一个有序数组中,
+ * 崩溃留下的整段未使用的预留 XID 只占一个区间.
+ * 压缩时把低水位写为文件的 Base, 只保留 Base 之后的状态, 原子地替换 XID 文件.
+ *
+ * 压缩后的 XID 文件格式为:
+ * [Limit] [Magic] [Base] [NRanges] [Range1] ... [RangeN] [Status(Base+1)] [Status(Base+2)] ...
+ * Limit, Magic, Base 各 8 字节, NRanges 4 字节, 每个 Range 为 aborted XID 的闭区间 [First 8 字节][Last 8 字节]
+ * 旧格式的 Limit 之后直接是 XID 1 的状态, 状态只会是 0, 1, 2, 而 Magic 的第一个字节大于 2, 以此区分两种格式
+ */
 public class TransactionManagerImpl implements TransactionManager{
 
     /**
@@ -21,6 +47,16 @@ public class TransactionManagerImpl implements TransactionManager{
      */
     static final int LEN_XID_HEADER_LENGTH = 8;
 
+    /**
+     * 压缩格式的文件头: Limit, Magic, Base, NRanges
+     */
+    private static final long XID_MAGIC = 0x4D59584944563200L;
+    private static final int OF_MAGIC = LEN_XID_HEADER_LENGTH;
+    private static final int OF_BASE = OF_MAGIC + 8;
+    private static final int OF_N_RANGES = OF_BASE + 8;
+    private static final int OF_RANGES = OF_N_RANGES + 4;
+    private static final int LEN_RANGE = 16;
+
     /**
      * 每个事物的占用长度
      */
@@ -36,26 +72,97 @@ public class TransactionManagerImpl implements TransactionManager{
     /**
      * 超级事物, 永远为 committed 状态
      */
-    private static final long SUPER_XID = 0;
+    public static final long SUPER_XID = 0;
 
     static final String XID_SUFFIX = ".xid";
-    
+
+    /**
+     * 打开时每次从 XID 文件读入的长度
+     */
+    private static final int LOAD_BLOCK = 1 << 20;
+
+    /**
+     * 每次在文件中预留的 XID 个数
+     */
+    static final int XID_RESERVE = 10000;
+
+    /**
+     * 低水位超过 Base 这么多个 XID 时, 预留新的 XID 段后自动压缩
+     */
+    static final long COMPACT_THRESHOLD = 1 << 20;
+
     public TransactionManagerImpl(RandomAccessFile file, FileChannel fc) {
+        this(null, file, fc);
+    }
+
+    /**
+     * @param path XID 文件的路径, 为 null 时不能压缩
+     */
+    public TransactionManagerImpl(File path, RandomAccessFile file, FileChannel fc) {
+        this.path = path;
         this.file = file;
         this.fc = fc;
-        this.xidCounter = xidCounter;
-        this.counterLock = counterLock;
+        this.counterLock = new ReentrantLock();
+        this.statuses = new XidStatusTable();
+        checkXIDCounter();
+        loadStatuses();
+        this.lowWater = base;
     }
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private long xidCounter;
+    private final File path;
+    private volatile RandomAccessFile file;
+    private volatile FileChannel fc;
+
+    /**
+     * 最后一个分配出去的 XID
+     */
+    private final AtomicLong xidCounter = new AtomicLong();
+
+    /**
+     * 文件中已经预留的最大 XID, 只在持有 counterLock 时修改
+     */
+    private volatile long reservedLimit;
     private Lock counterLock;
 
+    private final XidStatusTable statuses;
+
+    /**
+     * 文件中第一个状态之前的 XID, 不大于它的 XID 都已经结束
+     * dataStart 为 Base + 1 的状态在文件中的位置
+     */
+    private volatile long base;
+    private volatile long dataStart = LEN_XID_HEADER_LENGTH;
+
+    /**
+     * 不大于 base 的 aborted XID 区间, 依次为各区间的 First, Last, 升序
+     */
+    private volatile long[] abortedBelow = new long[0];
+
+    /**
+     * 当前的低水位, 只在持有 counterLock 时访问
+     */
+    private long lowWater;
+
+    /**
+     * 状态写入持有读锁, 压缩替换文件时持有写锁
+     */
+    private final ReadWriteLock fileLock = new ReentrantReadWriteLock();
+
+    /**
+     * 组 force 状态, 只在持有 forceLock 时访问
+     * requestedSeq 为已写入页缓存、等待 force 的最大序号, forcedSeq 为已经 force 的最大序号
+     */
+    private final Lock forceLock = new ReentrantLock();
+    private final Condition forced = forceLock.newCondition();
+    private long requestedSeq;
+    private long forcedSeq;
+    private boolean forcing;
+
 
     /**
      * 检查 XID 文件是否合法
-     * 读取 XID_FIELD_HEADER 中的 xidCounter, 根据它计算文件的理论长度, 对比实际长度
+     * 读取 XID_FIELD_HEADER 中预留的最大 XID, 根据它计算文件的理论长度, 对比实际长度
+     * 预留时在写入文件头之前崩溃, 文件会比理论长度长, 多出的部分属于没有生效的预留, 直接截掉
      */
     private void checkXIDCounter() {
         long fileLen = 0;
@@ -64,35 +171,90 @@ public class TransactionManagerImpl implements TransactionManager{
         } catch (IOException e) {
             Panic.panic(Error.BadXIDFileException);
         }
-        
+
         if (fileLen < LEN_XID_HEADER_LENGTH) {
             Panic.panic(Error.BadXIDFileException);
         }
 
-        ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(LEN_XID_HEADER_LENGTH);
-        try {
-            fc.position(0);
-            fc.read(buf.nioBuffer());
-        } catch (IOException e) {
-            Panic.panic(e);
+        ByteBuffer buf = ByteBuffer.allocate(LEN_XID_HEADER_LENGTH);
+        readFully(buf, 0);
+        this.reservedLimit = buf.getLong(0);
+        this.xidCounter.set(reservedLimit);
+
+        if (fileLen > OF_MAGIC && readByte(OF_MAGIC) > FIELD_TRAN_ABORTED) {
+            readCompactHeader(fileLen);
+        }
+
+        long end = getXidPosition(reservedLimit + 1);
+        if (end > fileLen) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        if (end < fileLen) {
+            try {
+                fc.truncate(end);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
         }
 
-        this.xidCounter = Parser.parseLong(buf.array());
-        long end = getXidPosition(this.xidCounter + 1);
-        
-        if (end != fileLen) {
+    }
+
+    /**
+     * 读取压缩格式的 Base 与 aborted 列表
+     * @param fileLen
+     */
+    private void readCompactHeader(long fileLen) {
+        if (fileLen < OF_RANGES) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        ByteBuffer head = ByteBuffer.allocate(OF_RANGES - OF_MAGIC);
+        readFully(head, OF_MAGIC);
+        head.flip();
+        if (head.getLong() != XID_MAGIC) {
             Panic.panic(Error.BadXIDFileException);
         }
+        long b = head.getLong();
+        int n = head.getInt();
+        if (n < 0 || OF_RANGES + (long) n * LEN_RANGE > fileLen || b > reservedLimit) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        ByteBuffer raw = ByteBuffer.allocate(n * LEN_RANGE);
+        readFully(raw, OF_RANGES);
+        raw.flip();
+        long[] aborted = new long[n * 2];
+        raw.asLongBuffer().get(aborted);
 
+        this.base = b;
+        this.abortedBelow = aborted;
+        this.dataStart = OF_RANGES + (long) n * LEN_RANGE;
     }
-    
+
+    /**
+     * 把 XID 文件中 Base 之后所有事务的状态读入内存
+     */
+    private void loadStatuses() {
+        byte[] block = new byte[LOAD_BLOCK];
+        long xid = base + 1;
+        while (xid <= reservedLimit) {
+            int len = (int) Math.min(LOAD_BLOCK, reservedLimit - xid + 1);
+            ByteBuffer buf = ByteBuffer.wrap(block, 0, len);
+            readFully(buf, getXidPosition(xid));
+            for (int i = 0; i < len; i++) {
+                if (block[i] != FIELD_TRAN_ACTIVE) {
+                    statuses.set(xid + i, block[i]);
+                }
+            }
+            xid += len;
+        }
+    }
+
     /**
      * 根据事物 xid 取得其在 xid 文件中对应的位置
      * @param xid
      * @return
      */
     private long getXidPosition(long xid) {
-        return LEN_XID_HEADER_LENGTH + (xid - 1) * XID_FIELD_SIZE;
+        return dataStart + (xid - base - 1) * XID_FIELD_SIZE;
     }
 
 
@@ -102,19 +264,17 @@ public class TransactionManagerImpl implements TransactionManager{
      */
     @Override
     public long begin() {
-        counterLock.lock();
-        try {
-            long xid = xidCounter + 1;
-            updateXID(xid, FIELD_TRAN_ACTIVE);
-            incrXIDCounter();
-            return xid;
-        } finally {
-            counterLock.unlock();
+        long xid = xidCounter.incrementAndGet();
+        if (xid > reservedLimit) {
+            reserve(xid);
         }
+        statuses.set(xid, FIELD_TRAN_ACTIVE);
+        return xid;
     }
 
     /**
-     * 更新 xid 事物的状态为 status
+     * 更新 xid 事物的状态为 status, 只写入页缓存
+     * 调用方持有 fileLock 的读锁
      * @param xid
      * @param status
      */
@@ -122,37 +282,205 @@ public class TransactionManagerImpl implements TransactionManager{
         long offset = getXidPosition(xid);
         byte[] tmp = new byte[XID_FIELD_SIZE];
         tmp[0] = status;
-        ByteBuffer buf = ByteBuffer.wrap(tmp);
+        writeFully(ByteBuffer.wrap(tmp), offset);
+    }
+
+    /**
+     * 预留 XID 直到覆盖 xid: 先把新的一段写成 aborted 并 force, 再更新 XID Header 并 force
+     * 之后如果低水位离 Base 足够远, 顺便压缩 XID 文件
+     * @param xid
+     */
+    private void reserve(long xid) {
+        counterLock.lock();
         try {
-            fc.position(offset);
-            fc.write(buf);
+            if (reservedLimit >= xid) {
+                return;
+            }
+            fileLock.readLock().lock();
+            try {
+                while (reservedLimit < xid) {
+                    long limit = reservedLimit + XID_RESERVE;
+                    byte[] range = new byte[XID_RESERVE * XID_FIELD_SIZE];
+                    Arrays.fill(range, FIELD_TRAN_ABORTED);
+                    writeFully(ByteBuffer.wrap(range), getXidPosition(reservedLimit + 1));
+                    fc.force(false);
+                    writeFully(ByteBuffer.allocate(LEN_XID_HEADER_LENGTH).putLong(0, limit), 0);
+                    fc.force(false);
+                    reservedLimit = limit;
+                }
+            } finally {
+                fileLock.readLock().unlock();
+            }
+            if (advanceLowWater() - base >= COMPACT_THRESHOLD) {
+                compactLocked();
+            }
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            counterLock.unlock();
         }
-        
+    }
+
+    /**
+     * 把 XID 文件中低水位以下的状态移出, aborted 的 XID 并入 Base 之下的有序数组
+     */
+    @Override
+    public void compact() {
+        counterLock.lock();
         try {
-            fc.force(false);
+            advanceLowWater();
+            compactLocked();
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            counterLock.unlock();
         }
     }
 
     /**
-     * 将 XID 加一, 并更新 XID Header
+     * 低水位: 从它往下的 XID 都已经结束
+     * 从上次的位置向前推进到第一个仍为 active 的 XID 之前, 只在持有 counterLock 时调用
+     * 已分配但 begin 还没返回的 XID 在内存中同样是 active, 不会被越过
+     * @return
      */
-    private void incrXIDCounter() {
-        xidCounter++;
-        ByteBuf buf = Unpooled.wrappedBuffer(Parser.long2Byte(xidCounter)); 
+    private long advanceLowWater() {
+        long limit = Math.min(xidCounter.get(), reservedLimit);
+        long x = lowWater;
+        while (x < limit && statuses.get(x + 1) != FIELD_TRAN_ACTIVE) {
+            x ++;
+        }
+        lowWater = x;
+        return x;
+    }
+
+    /**
+     * 以当前低水位为新的 Base 重写 XID 文件: 写入临时文件并 force, 再原子地替换原文件
+     * 重写期间持有 fileLock 的写锁, 状态的写入会等待替换完成
+     * @throws IOException
+     */
+    private void compactLocked() throws IOException {
+        long newBase = lowWater;
+        if (path == null || newBase <= base) {
+            return;
+        }
+
+        fileLock.writeLock().lock();
         try {
-            fc.position(0);
-            fc.write(buf.nioBuffer());
-        } catch (IOException e) {
-            Panic.panic(e);
+            long[] aborted = mergeAborted(newBase);
+            File tmp = new File(path.getPath() + ".tmp");
+            int headLen = OF_RANGES + aborted.length * 8;
+            try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+                out.setLength(0);
+                FileChannel ofc = out.getChannel();
+                ByteBuffer head = ByteBuffer.allocate(headLen);
+                head.putLong(reservedLimit).putLong(XID_MAGIC).putLong(newBase).putInt(aborted.length / 2);
+                head.asLongBuffer().put(aborted);
+                head.position(headLen).flip();
+                while (head.hasRemaining()) {
+                    ofc.write(head);
+                }
+                long from = getXidPosition(newBase + 1);
+                long len = getXidPosition(reservedLimit + 1) - from;
+                long done = 0;
+                while (done < len) {
+                    done += fc.transferTo(from + done, len - done, ofc);
+                }
+                ofc.force(true);
+            }
+            Files.move(tmp.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            RandomAccessFile oldFile = file;
+            FileChannel oldFc = fc;
+            file = new RandomAccessFile(path, "rw");
+            fc = file.getChannel();
+            oldFc.close();
+            oldFile.close();
+
+            abortedBelow = aborted;
+            dataStart = headLen;
+            base = newBase;
+            statuses.dropBelow(newBase + 1);
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 把 (base, newBase] 中 aborted 的 XID 追加到当前的区间列表, 相邻的 XID 并入同一区间
+     * @param newBase
+     * @return
+     */
+    private long[] mergeAborted(long newBase) {
+        long[] old = abortedBelow;
+        long[] merged = Arrays.copyOf(old, old.length + 16);
+        int n = old.length;
+        for (long x = base + 1; x <= newBase; x++) {
+            if (statuses.get(x) != FIELD_TRAN_ABORTED) {
+                continue;
+            }
+            if (n > 0 && merged[n - 1] == x - 1) {
+                merged[n - 1] = x;
+                continue;
+            }
+            if (n == merged.length) {
+                merged = Arrays.copyOf(merged, n * 2);
+            }
+            merged[n ++] = x;
+            merged[n ++] = x;
+        }
+        return Arrays.copyOf(merged, n);
+    }
+
+    /**
+     * xid 是否落在某个 aborted 区间内
+     * @param ranges
+     * @param xid
+     * @return
+     */
+    private static boolean inRanges(long[] ranges, long xid) {
+        int lo = 0, hi = ranges.length / 2 - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ranges[mid * 2 + 1] < xid) {
+                lo = mid + 1;
+            } else if (ranges[mid * 2] > xid) {
+                hi = mid - 1;
+            } else {
+                return true;
+            }
         }
+        return false;
+    }
+
+    /**
+     * 组 force: 调用前写入的内容在返回时一定已经持久化
+     * 同一时刻只有一个线程执行 force, 在它执行期间到达的调用方由下一次 force 一起处理
+     */
+    private void groupForce() {
+        forceLock.lock();
         try {
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+            long seq = ++requestedSeq;
+            while (forcedSeq < seq) {
+                if (forcing) {
+                    forced.awaitUninterruptibly();
+                    continue;
+                }
+                forcing = true;
+                long target = requestedSeq;
+                forceLock.unlock();
+                try {
+                    fc.force(false);
+                } catch (IOException e) {
+                    Panic.panic(e);
+                } finally {
+                    forceLock.lock();
+                    forcing = false;
+                    forcedSeq = target;
+                    forced.signalAll();
+                }
+            }
+        } finally {
+            forceLock.unlock();
         }
     }
 
@@ -162,7 +490,14 @@ public class TransactionManagerImpl implements TransactionManager{
      */
     @Override
     public void commit(long xid) {
-        updateXID(xid, FIELD_TRAN_COMMITTED);
+        fileLock.readLock().lock();
+        try {
+            updateXID(xid, FIELD_TRAN_COMMITTED);
+            groupForce();
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        statuses.set(xid, FIELD_TRAN_COMMITTED);
     }
 
     /**
@@ -171,27 +506,32 @@ public class TransactionManagerImpl implements TransactionManager{
      */
     @Override
     public void abort(long xid) {
-        updateXID(xid, FIELD_TRAN_ABORTED);
+        fileLock.readLock().lock();
+        try {
+            updateXID(xid, FIELD_TRAN_ABORTED);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        statuses.set(xid, FIELD_TRAN_ABORTED);
     }
 
     /**
      * 检查 XID 事物是否处于 status 状态
+     * Base 之下的 XID 不是 aborted 就是 committed
      * @param xid
      * @param status
      * @return
      */
     private boolean checkXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        ByteBuf buf = Unpooled.wrappedBuffer(new byte[XID_FIELD_SIZE]);
-        try {
-            fc.position(offset);
-            fc.read(buf.nioBuffer());
-        } catch (IOException e) {
-            Panic.panic(e);
+        byte s = xid <= base ? FIELD_TRAN_ACTIVE : statuses.get(xid);
+        // 读内存状态的同时可能发生了压缩, 该 XID 的状态已经移到 Base 之下
+        if (xid <= base) {
+            boolean aborted = inRanges(abortedBelow, xid);
+            s = aborted ? FIELD_TRAN_ABORTED : FIELD_TRAN_COMMITTED;
         }
-        return buf.array()[0] == status;
+        return s == status;
     }
-    
+
     @Override
     public boolean isActive(long xid) {
         if (xid == SUPER_XID) {
@@ -218,11 +558,44 @@ public class TransactionManagerImpl implements TransactionManager{
 
     @Override
     public void close() {
+        fileLock.writeLock().lock();
         try {
+            fc.force(false);
             fc.close();
             file.close();
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    private byte readByte(long offset) {
+        ByteBuffer buf = ByteBuffer.allocate(1);
+        readFully(buf, offset);
+        return buf.get(0);
+    }
+
+    private void readFully(ByteBuffer buf, long offset) {
+        int start = buf.position();
+        try {
+            while (buf.hasRemaining()) {
+                if (fc.read(buf, offset + buf.position() - start) < 0) {
+                    Panic.panic(Error.BadXIDFileException);
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private void writeFully(ByteBuffer buf, long offset) {
+        try {
+            while (buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
         }
     }
 }
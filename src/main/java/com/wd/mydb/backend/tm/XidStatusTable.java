@@ -0,0 +1,98 @@
+package com.wd.mydb.backend.tm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 内存中的事务状态表
+ *
+ * 每个 XID 占 2 bit, 每个 long 保存 32 个 XID 的状态, 按 CHUNK_XIDS 个 XID 分块.
+ * 块数组写时复制, 查询状态只是两次 volatile 读, 不加锁;
+ * 修改状态对所在的 long 做 CAS, 不影响同一 long 中的其他 XID.
+ * 没有分配块的 XID 状态为 0, 即 active.
+ * 低水位以下的块可以通过 dropBelow 释放, 之后这些 XID 的状态由调用方自己保存.
+ */
+class XidStatusTable {
+
+    private static final int BITS = 2;
+    private static final int PER_LONG = Long.SIZE / BITS;
+    private static final long MASK = (1L << BITS) - 1;
+
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_XIDS = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_LONGS = CHUNK_XIDS / PER_LONG;
+
+    private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+    private final Lock growLock = new ReentrantLock();
+
+    byte get(long xid) {
+        AtomicLongArray[] cs = chunks;
+        long idx = xid >>> CHUNK_SHIFT;
+        if (idx >= cs.length) {
+            return 0;
+        }
+        AtomicLongArray chunk = cs[(int) idx];
+        if (chunk == null) {
+            return 0;
+        }
+        int slot = (int) (xid & (CHUNK_XIDS - 1));
+        long word = chunk.get(slot / PER_LONG);
+        return (byte) ((word >>> ((slot % PER_LONG) * BITS)) & MASK);
+    }
+
+    void set(long xid, byte status) {
+        AtomicLongArray chunk = chunk(xid >>> CHUNK_SHIFT);
+        int slot = (int) (xid & (CHUNK_XIDS - 1));
+        int i = slot / PER_LONG;
+        int shift = (slot % PER_LONG) * BITS;
+        while (true) {
+            long word = chunk.get(i);
+            long next = (word & ~(MASK << shift)) | ((status & MASK) << shift);
+            if (word == next || chunk.compareAndSet(i, word, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 释放所有 XID 都小于 xid 的块, 这些 XID 之后不能再 set
+     * @param xid
+     */
+    void dropBelow(long xid) {
+        growLock.lock();
+        try {
+            AtomicLongArray[] next = chunks.clone();
+            long full = xid >>> CHUNK_SHIFT;
+            for (int i = 0; i < Math.min(full, next.length); i++) {
+                next[i] = null;
+            }
+            chunks = next;
+        } finally {
+            growLock.unlock();
+        }
+    }
+
+    private AtomicLongArray chunk(long idx) {
+        AtomicLongArray[] cs = chunks;
+        if (idx < cs.length) {
+            return cs[(int) idx];
+        }
+        growLock.lock();
+        try {
+            cs = chunks;
+            if (idx >= cs.length) {
+                AtomicLongArray[] next = Arrays.copyOf(cs, (int) idx + 1);
+                for (int i = cs.length; i < next.length; i++) {
+                    next[i] = new AtomicLongArray(CHUNK_LONGS);
+                }
+                chunks = next;
+                cs = next;
+            }
+            return cs[(int) idx];
+        } finally {
+            growLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.wd.mydb.backend.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ByteBuffer 的绝对位置批量读写
+ * 不修改 buffer 的 position/limit, 多个线程可以共享同一个 buffer
+ */
+public class Buffers {
+
+    public static void put(ByteBuffer dst, int index, byte[] src) {
+        put(dst, index, src, 0, src.length);
+    }
+
+    public static void put(ByteBuffer dst, int index, byte[] src, int off, int len) {
+        if (dst.hasArray()) {
+            System.arraycopy(src, off, dst.array(), dst.arrayOffset() + index, len);
+            return;
+        }
+        ByteBuffer dup = dst.duplicate();
+        dup.position(index);
+        dup.put(src, off, len);
+    }
+
+    public static void get(ByteBuffer src, int index, byte[] dst) {
+        get(src, index, dst, 0, dst.length);
+    }
+
+    public static void get(ByteBuffer src, int index, byte[] dst, int off, int len) {
+        if (src.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + index, dst, off, len);
+            return;
+        }
+        ByteBuffer dup = src.duplicate();
+        dup.position(index);
+        dup.get(dst, off, len);
+    }
+
+    /**
+     * buffer 内部的拷贝, 语义与 System.arraycopy 相同
+     */
+    public static void copy(ByteBuffer buf, int from, int to, int len) {
+        if (buf.hasArray()) {
+            byte[] raw = buf.array();
+            System.arraycopy(raw, buf.arrayOffset() + from, raw, buf.arrayOffset() + to, len);
+            return;
+        }
+        byte[] tmp = new byte[len];
+        get(buf, from, tmp);
+        put(buf, to, tmp);
+    }
+}
@@ -1,57 +1,121 @@
 package com.wd.mydb.backend.utils;
 
-import java.nio.ByteBuffer;
-import java.util.Arrays;
-
-import com.google.common.primitives.Bytes;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 
 
+/**
+ * 基本类型与字节数组之间的编解码, 统一使用大端序
+ * getXxx / putXxx 直接读写 buf 的 off 处, 不分配对象, 热路径上应优先使用;
+ * xxx2Byte / parseXxx 是分配新数组或从数组开头读取的便捷形式
+ */
 public class Parser {
-    
+
     private static final int SEED = 13331;
-    
+
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    public static short getShort(byte[] buf, int off) {
+        return (short) SHORT.get(buf, off);
+    }
+
+    public static void putShort(byte[] buf, int off, short value) {
+        SHORT.set(buf, off, value);
+    }
+
+    /**
+     * 从 buf 的 off 处读取一个 int, 不拷贝
+     */
+    public static int getInt(byte[] buf, int off) {
+        return (int) INT.get(buf, off);
+    }
+
+    public static void putInt(byte[] buf, int off, int value) {
+        INT.set(buf, off, value);
+    }
+
+    public static long getLong(byte[] buf, int off) {
+        return (long) LONG.get(buf, off);
+    }
+
+    public static void putLong(byte[] buf, int off, long value) {
+        LONG.set(buf, off, value);
+    }
+
     public static byte[] short2Byte(short value) {
-        return ByteBuffer.allocate(Short.SIZE / Byte.SIZE).putShort(value).array();
+        byte[] buf = new byte[Short.BYTES];
+        putShort(buf, 0, value);
+        return buf;
     }
+
     public static short parseShort(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 2);
-        return buffer.getShort();
+        return getShort(buf, 0);
     }
-    
+
     public static byte[] int2Byte(int value) {
-        return ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(value).array();
+        byte[] buf = new byte[Integer.BYTES];
+        putInt(buf, 0, value);
+        return buf;
     }
-    
+
     public static int parseInt(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 4);
-        return buffer.getInt();
+        return getInt(buf, 0);
     }
-    
+
     public static byte[] long2Byte(long value) {
-        return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
+        byte[] buf = new byte[Long.BYTES];
+        putLong(buf, 0, value);
+        return buf;
     }
-    
+
     public static long parseLong(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 8);
-        return buffer.getLong();
+        return getLong(buf, 0);
     }
-    
+
+    /**
+     * [Length 4字节] [UTF-8 字节], Length 为字节数
+     * @param raw
+     * @return
+     */
     public static ParseStringRes parseString(byte[] raw) {
-        int length = parseInt(Arrays.copyOf(raw, 4));
-        String str = new String(Arrays.copyOfRange(raw, 4, 4 + length));
+        int length = getInt(raw, 0);
+        String str = new String(raw, 4, length, StandardCharsets.UTF_8);
         return new ParseStringRes(str, length + 4);
     }
-    
+
     public static byte[] string2Byte(String str) {
-        byte[] l = int2Byte(str.length());
-        return Bytes.concat(l, str.getBytes());
+        byte[] s = str.getBytes(StandardCharsets.UTF_8);
+        byte[] raw = new byte[4 + s.length];
+        putInt(raw, 0, s.length);
+        System.arraycopy(s, 0, raw, 4, s.length);
+        return raw;
     }
-    
+
+    /**
+     * 保序的字符串键: UTF-8 编码的前 8 个字节按大端序组成 long, 不足补 0, 再翻转符号位,
+     * 使 long 的有符号比较与字节的字典序一致.
+     * 前 8 个字节相同的字符串得到相同的键, 等值查找的结果需要调用方再比较原字符串
+     * @param key
+     * @return
+     */
+    public static long str2Key(String key) {
+        byte[] raw = key.getBytes(StandardCharsets.UTF_8);
+        long res = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            res = res << 8 | (i < raw.length ? raw[i] & 0xFF : 0);
+        }
+        return res ^ Long.MIN_VALUE;
+    }
+
     public static long str2Uid(String key) {
         long seed = SEED;
-        
+
         long res = 0;
-        for (byte b : key.getBytes()) {
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
             res = res * seed + (long) b;
         }
         return res;
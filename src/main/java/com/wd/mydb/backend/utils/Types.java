@@ -0,0 +1,16 @@
+package com.wd.mydb.backend.utils;
+
+public class Types {
+
+    /**
+     * UID: 高 32 位为页号, 低 16 位为页内偏移
+     * @param pgno
+     * @param offset
+     * @return
+     */
+    public static long addressToUid(int pgno, short offset) {
+        long u0 = (long) pgno;
+        long u1 = (long) offset;
+        return u0 << 32 | u1;
+    }
+}
@@ -0,0 +1,123 @@
+package com.wd.mydb.backend.vm;
+
+import com.wd.mydb.backend.common.SubArray;
+import com.wd.mydb.backend.dm.dataItem.DataItem;
+import com.wd.mydb.backend.utils.Parser;
+
+import java.util.Arrays;
+
+/**
+ * VM 向上层抽象出 entry
+ * entry 结构:
+ * [XMIN] [XMAX] [data]
+ * XMIN: 8字节, 创建该版本的事务
+ * XMAX: 8字节, 删除该版本的事务, 0 表示未被删除
+ *
+ * entry 直接建立在 DataItem 之上, 不另做缓存: DataItem 已经由 DM 缓存,
+ * 再缓存一层只会让两个缓存互相占用名额
+ */
+public class Entry {
+
+    private static final int OF_XMIN = 0;
+    private static final int OF_XMAX = OF_XMIN + 8;
+    private static final int OF_DATA = OF_XMAX + 8;
+
+    private long uid;
+    private DataItem dataItem;
+
+    public static Entry newEntry(DataItem dataItem, long uid) {
+        Entry entry = new Entry();
+        entry.uid = uid;
+        entry.dataItem = dataItem;
+        return entry;
+    }
+
+    /**
+     * 读取 uid 对应的 entry, DataItem 已被撤销时返回 null
+     * @param vm
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    public static Entry loadEntry(VersionManagerImpl vm, long uid) throws Exception {
+        DataItem di = vm.dm.read(uid);
+        if (di == null) {
+            return null;
+        }
+        return newEntry(di, uid);
+    }
+
+    public static byte[] wrapEntryRaw(long xid, byte[] data) {
+        byte[] raw = new byte[OF_DATA + data.length];
+        Parser.putLong(raw, OF_XMIN, xid);
+        System.arraycopy(data, 0, raw, OF_DATA, data.length);
+        return raw;
+    }
+
+    public void release() {
+        dataItem.release();
+    }
+
+    /**
+     * 以拷贝的形式返回内容
+     * @return
+     */
+    public byte[] data() {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            return Arrays.copyOfRange(sa.raw, sa.start + OF_DATA, sa.end);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    public long getXmin() {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            return Parser.getLong(sa.raw, sa.start + OF_XMIN);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    public long getXmax() {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            return Parser.getLong(sa.raw, sa.start + OF_XMAX);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    /**
+     * 在读锁内一次读出 XMIN 与 XMAX, 可见性判断只需要加一次锁
+     * @param versions 长度至少为 2, 依次写入 XMIN, XMAX
+     */
+    public void getVersions(long[] versions) {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            versions[0] = Parser.getLong(sa.raw, sa.start + OF_XMIN);
+            versions[1] = Parser.getLong(sa.raw, sa.start + OF_XMAX);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    public void setXmax(long xid) {
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            Parser.putLong(sa.raw, sa.start + OF_XMAX, xid);
+        } finally {
+            dataItem.after(xid);
+        }
+    }
+
+    public long getUid() {
+        return uid;
+    }
+}
@@ -0,0 +1,308 @@
+package com.wd.mydb.backend.vm;
+
+import com.wd.mydb.common.Error;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 记录锁表, 维护了一个依赖等待图, 以进行死锁检测
+ * 每个 UID 同一时刻只被一个 XID 持有, 持有者在事务结束时通过 remove 释放
+ *
+ * 锁按 UID 的哈希分到 STRIPES 个条带中, 每个条带有自己的锁, 不同条带上的加锁与释放互不阻塞.
+ * 没有冲突的 add / remove 只经过条带锁.
+ *
+ * 每个事务最多等待一个 UID, 等待图中每个 XID 只有一条出边 (XID -> 它等待的 UID 的持有者),
+ * 新的环只可能经过刚加入的边. 因此事务阻塞时, 只需从它自己出发沿出边走一遍, 走回自己即为死锁,
+ * 不需要遍历整个图. 出边在条带锁内登记, 检测在 graphLock 内串行, 后检测的事务一定能看到先登记的边.
+ * 环上 XID 最大 (最年轻) 的事务作为牺牲者, 它的等待被取消并以 DeadlockException 唤醒,
+ * 由它自己的线程通过 VM 回滚 (TransactionManager.abort)
+ *
+ * 等待超过 lockWaitMillis 的事务放弃等待并以 LockTimeoutException 唤醒, 同样由 VM 回滚,
+ * 等锁的线程不会被无限期占住.
+ */
+public class LockTable {
+
+    /**
+     * 条带数, 必须是 2 的幂
+     */
+    private static final int STRIPES = 64;
+
+    public static final long DEFAULT_LOCK_WAIT_MILLIS = 10_000;
+
+    private final Stripe[] stripes;
+
+    private final Map<Long, List<Long>> x2u;    // 某个 XID 已经获得的资源的 UID 列表, 可能被授予锁的其他线程追加
+    private final Map<Long, Long> waitU;        // XID 正在等待的 UID
+    private final Lock graphLock;
+    private final long lockWaitMillis;
+
+    public LockTable() {
+        this(DEFAULT_LOCK_WAIT_MILLIS);
+    }
+
+    /**
+     * @param lockWaitMillis 等待一个 UID 的最长时间
+     */
+    public LockTable(long lockWaitMillis) {
+        this.lockWaitMillis = lockWaitMillis;
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        x2u = new ConcurrentHashMap<>();
+        waitU = new ConcurrentHashMap<>();
+        graphLock = new ReentrantLock();
+    }
+
+    /**
+     * 不需要等待则返回 null, 否则返回 Waiter, 资源分给 xid 时 Waiter 被唤醒
+     * 会造成死锁且 xid 被选为牺牲者时抛出异常, 此时 xid 不在等待图中
+     * @param xid
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    public Waiter add(long xid, long uid) throws Exception {
+        Stripe s = stripeFor(uid);
+        Waiter w;
+        s.lock.lock();
+        try {
+            RowLock row = s.rows.get(uid);
+            if (row == null) {
+                s.rows.put(uid, new RowLock(xid));
+                heldBy(xid).add(uid);
+                return null;
+            }
+            if (row.holder == xid) {
+                return null;
+            }
+            w = new Waiter(this, xid, uid);
+            if (row.waiters == null) {
+                row.waiters = new ArrayDeque<>(4);
+            }
+            row.waiters.addLast(w);
+            waitU.put(xid, uid);
+        } finally {
+            s.lock.unlock();
+        }
+
+        graphLock.lock();
+        try {
+            long victim = findVictim(xid);
+            if (victim != 0 && cancel(victim) && victim == xid) {
+                throw Error.DeadlockException;
+            }
+        } finally {
+            graphLock.unlock();
+        }
+        return w;
+    }
+
+    /**
+     * 在一个事务 commit 或者 abort 时, 释放它持有的所有资源, 并把资源交给等待者
+     * @param xid
+     */
+    public void remove(long xid) {
+        waitU.remove(xid);
+        List<Long> held = x2u.remove(xid);
+        if (held == null) {
+            return;
+        }
+        // xid 已经不在等待, 不会再有其他线程向 held 追加
+        for (long uid : held) {
+            Stripe s = stripeFor(uid);
+            s.lock.lock();
+            try {
+                selectNewXID(s, uid);
+            } finally {
+                s.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 从等待队列中选择一个 XID 来占用 UID, 调用方持有条带锁
+     * @param s
+     * @param uid
+     */
+    private void selectNewXID(Stripe s, long uid) {
+        RowLock row = s.rows.get(uid);
+        Waiter w = row.waiters == null ? null : row.waiters.pollFirst();
+        if (w == null) {
+            s.rows.remove(uid);
+            return;
+        }
+        row.holder = w.xid;
+        heldBy(w.xid).add(uid);
+        waitU.remove(w.xid);
+        w.latch.countDown();
+    }
+
+    /**
+     * 从 xid 出发沿等待边查找经过 xid 的环, 返回环上最大的 XID, 没有环时返回 0
+     * 调用方持有 graphLock
+     * @param xid
+     * @return
+     */
+    private long findVictim(long xid) {
+        long victim = xid;
+        long x = xid;
+        // 环之外的等待链不会比等待者的个数更长, 超出说明链上的边正在变化, 留给后来者检测
+        for (int steps = waitU.size(); steps >= 0; steps--) {
+            Long uid = waitU.get(x);
+            if (uid == null) {
+                return 0;
+            }
+            long holder = holderOf(uid);
+            // 等待已经被满足或 UID 已被释放, 这条边不再存在
+            if (holder == 0 || holder == x) {
+                return 0;
+            }
+            if (holder == xid) {
+                return victim;
+            }
+            victim = Math.max(victim, holder);
+            x = holder;
+        }
+        return 0;
+    }
+
+    /**
+     * 取消 xid 的等待并以 DeadlockException 唤醒它, 等待已经被满足时返回 false
+     * 调用方持有 graphLock
+     * @param xid
+     * @return
+     */
+    private boolean cancel(long xid) {
+        Long uid = waitU.get(xid);
+        if (uid == null) {
+            return false;
+        }
+        Stripe s = stripeFor(uid);
+        s.lock.lock();
+        try {
+            RowLock row = s.rows.get(uid);
+            if (row == null || row.waiters == null) {
+                return false;
+            }
+            for (Waiter w : row.waiters) {
+                if (w.xid == xid) {
+                    row.waiters.remove(w);
+                    waitU.remove(xid);
+                    w.err = Error.DeadlockException;
+                    w.latch.countDown();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    /**
+     * 等待超时, 把 w 从等待队列中移出, w 已经被授予锁或被取消时返回 false
+     * @param w
+     * @return
+     */
+    private boolean abandon(Waiter w) {
+        Stripe s = stripeFor(w.uid);
+        s.lock.lock();
+        try {
+            RowLock row = s.rows.get(w.uid);
+            if (row == null || row.waiters == null || !row.waiters.remove(w)) {
+                return false;
+            }
+            waitU.remove(w.xid);
+            return true;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    private long holderOf(long uid) {
+        Stripe s = stripeFor(uid);
+        s.lock.lock();
+        try {
+            RowLock row = s.rows.get(uid);
+            return row == null ? 0 : row.holder;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    private List<Long> heldBy(long xid) {
+        List<Long> held = x2u.get(xid);
+        if (held == null) {
+            held = Collections.synchronizedList(new ArrayList<>());
+            List<Long> other = x2u.putIfAbsent(xid, held);
+            if (other != null) {
+                held = other;
+            }
+        }
+        return held;
+    }
+
+    private Stripe stripeFor(long uid) {
+        long h = uid * 0x9E3779B97F4A7C15L;
+        return stripes[(int) (h ^ (h >>> 32)) & (STRIPES - 1)];
+    }
+
+    /**
+     * 一个 UID 上的锁: 持有者与按到达顺序排队的等待者, 没有冲突时不分配等待队列
+     */
+    private static final class RowLock {
+        private long holder;
+        private ArrayDeque<Waiter> waiters;
+
+        private RowLock(long holder) {
+            this.holder = holder;
+        }
+    }
+
+    private static final class Stripe {
+        private final Lock lock = new ReentrantLock();
+        private final HashMap<Long, RowLock> rows = new HashMap<>();
+    }
+
+    /**
+     * 等待中的加锁请求
+     */
+    public static final class Waiter {
+        private final LockTable lt;
+        private final long xid;
+        private final long uid;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile Exception err;
+
+        private Waiter(LockTable lt, long xid, long uid) {
+            this.lt = lt;
+            this.xid = xid;
+            this.uid = uid;
+        }
+
+        /**
+         * 等待资源分给本事务, 本事务被选为死锁的牺牲者时抛出 DeadlockException,
+         * 等待超时时抛出 LockTimeoutException
+         * @throws Exception
+         */
+        public void await() throws Exception {
+            if (!latch.await(lt.lockWaitMillis, TimeUnit.MILLISECONDS) && lt.abandon(this)) {
+                throw Error.LockTimeoutException;
+            }
+            if (err != null) {
+                throw err;
+            }
+        }
+    }
+}
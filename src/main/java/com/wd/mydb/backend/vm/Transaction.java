@@ -0,0 +1,59 @@
+package com.wd.mydb.backend.vm;
+
+import com.wd.mydb.backend.tm.TransactionManagerImpl;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * VM 对一个事务的抽象
+ * level 为 0 时是读提交, 为 1 时是可重复读.
+ * 可重复读的事务在 begin 时记录当时所有活跃事务的 XID (快照), 按升序保存,
+ * 之后判断可见性只在快照中二分查找, 快照创建后不再修改, 读取不需要加锁
+ */
+public class Transaction {
+
+    public static final int READ_COMMITTED = 0;
+    public static final int REPEATABLE_READ = 1;
+
+    private static final long[] EMPTY = new long[0];
+
+    public long xid;
+    public int level;
+    public long[] snapshot;
+    public volatile Exception err;
+    public volatile boolean autoAborted;
+
+    /**
+     * @param xid
+     * @param level
+     * @param active begin 时的活跃事务, 读提交时忽略
+     * @return
+     */
+    public static Transaction newTransaction(long xid, int level, Collection<Transaction> active) {
+        Transaction t = new Transaction();
+        t.xid = xid;
+        t.level = level;
+        t.snapshot = EMPTY;
+        if (level != READ_COMMITTED && active != null) {
+            long[] snapshot = new long[active.size()];
+            int n = 0;
+            for (Transaction other : active) {
+                if (other.xid != xid && n < snapshot.length) {
+                    snapshot[n++] = other.xid;
+                }
+            }
+            snapshot = Arrays.copyOf(snapshot, n);
+            Arrays.sort(snapshot);
+            t.snapshot = snapshot;
+        }
+        return t;
+    }
+
+    public boolean isInSnapshot(long xid) {
+        if (xid == TransactionManagerImpl.SUPER_XID) {
+            return false;
+        }
+        return Arrays.binarySearch(snapshot, xid) >= 0;
+    }
+}
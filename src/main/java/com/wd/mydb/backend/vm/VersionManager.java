@@ -0,0 +1,48 @@
+package com.wd.mydb.backend.vm;
+
+import com.wd.mydb.backend.dm.DataManager;
+import com.wd.mydb.backend.tm.TransactionManager;
+
+public interface VersionManager {
+
+    /**
+     * 读取 uid 对应的记录中 xid 可见的版本, 不可见或不存在时返回 null
+     * 读不加记录锁, 不会阻塞写
+     * @param xid
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    byte[] read(long xid, long uid) throws Exception;
+
+    /**
+     * 插入一条由 xid 创建的记录, 返回 uid
+     * @param xid
+     * @param data
+     * @return
+     * @throws Exception
+     */
+    long insert(long xid, byte[] data) throws Exception;
+
+    /**
+     * 删除 uid 对应的记录, 记录对 xid 不可见或已被 xid 删除时返回 false
+     * 与其他事务的写冲突时等待对方结束, 会造成死锁或版本跳跃时 xid 被自动回滚并抛出异常
+     * @param xid
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    boolean delete(long xid, long uid) throws Exception;
+
+    /**
+     * @param level Transaction.READ_COMMITTED 或 Transaction.REPEATABLE_READ
+     * @return
+     */
+    long begin(int level);
+    void commit(long xid) throws Exception;
+    void abort(long xid);
+
+    static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
+        return new VersionManagerImpl(tm, dm);
+    }
+}
@@ -0,0 +1,177 @@
+package com.wd.mydb.backend.vm;
+
+import com.wd.mydb.backend.dm.DataManager;
+import com.wd.mydb.backend.tm.TransactionManager;
+import com.wd.mydb.backend.tm.TransactionManagerImpl;
+import com.wd.mydb.common.Error;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * VM 的实现, 多版本并发控制
+ *
+ * 每条记录是一个 Entry, 删除只设置 XMAX, 读根据事务的快照判断版本的可见性, 不加记录锁.
+ * 写写冲突通过 LockTable 串行化, 持有者在事务结束时才释放.
+ *
+ * 活跃事务表的加入与快照的拍摄都在 beginLock 内完成, 保证 XID 更小的事务要么在快照中, 要么已经在表中.
+ * 事务结束时先更新 TM 中的状态, 再移出活跃事务表并释放记录锁:
+ * 这之间开始的事务会把它当作活跃事务放进快照, 等待它的写者被唤醒时能从 TM 看到它已经提交
+ */
+public class VersionManagerImpl implements VersionManager {
+
+    TransactionManager tm;
+    DataManager dm;
+    Map<Long, Transaction> activeTransaction;
+    Lock beginLock;
+    LockTable lt;
+
+    public VersionManagerImpl(TransactionManager tm, DataManager dm) {
+        this.tm = tm;
+        this.dm = dm;
+        this.activeTransaction = new ConcurrentHashMap<>();
+        activeTransaction.put(TransactionManagerImpl.SUPER_XID,
+                Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, Transaction.READ_COMMITTED, null));
+        this.beginLock = new ReentrantLock();
+        this.lt = new LockTable();
+    }
+
+    @Override
+    public byte[] read(long xid, long uid) throws Exception {
+        Transaction t = getTransaction(xid);
+        if (t.err != null) {
+            throw t.err;
+        }
+
+        Entry entry = Entry.loadEntry(this, uid);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            if (Visibility.isVisible(tm, t, entry)) {
+                return entry.data();
+            } else {
+                return null;
+            }
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public long insert(long xid, byte[] data) throws Exception {
+        Transaction t = getTransaction(xid);
+        if (t.err != null) {
+            throw t.err;
+        }
+
+        byte[] raw = Entry.wrapEntryRaw(xid, data);
+        return dm.insert(xid, raw);
+    }
+
+    @Override
+    public boolean delete(long xid, long uid) throws Exception {
+        Transaction t = getTransaction(xid);
+        if (t.err != null) {
+            throw t.err;
+        }
+
+        Entry entry = Entry.loadEntry(this, uid);
+        if (entry == null) {
+            return false;
+        }
+        try {
+            if (!Visibility.isVisible(tm, t, entry)) {
+                return false;
+            }
+            try {
+                LockTable.Waiter w = lt.add(xid, uid);
+                if (w != null) {
+                    w.await();
+                }
+            } catch (Exception e) {
+                throw autoAbort(t, e == Error.LockTimeoutException ? e : Error.DeadlockException);
+            }
+
+            if (entry.getXmax() == xid) {
+                return false;
+            }
+            if (Visibility.isVersionSkip(tm, t, entry)) {
+                throw autoAbort(t, Error.ConcurrentUpdateException);
+            }
+            // 读提交下, 等待期间记录可能已被其他事务删除
+            if (!Visibility.isVisible(tm, t, entry)) {
+                return false;
+            }
+
+            entry.setXmax(xid);
+            return true;
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public long begin(int level) {
+        beginLock.lock();
+        try {
+            long xid = tm.begin();
+            Transaction t = Transaction.newTransaction(xid, level, activeTransaction.values());
+            activeTransaction.put(xid, t);
+            return xid;
+        } finally {
+            beginLock.unlock();
+        }
+    }
+
+    @Override
+    public void commit(long xid) throws Exception {
+        Transaction t = getTransaction(xid);
+        if (t.err != null) {
+            throw t.err;
+        }
+
+        tm.commit(xid);
+        activeTransaction.remove(xid);
+        lt.remove(xid);
+    }
+
+    @Override
+    public void abort(long xid) {
+        internAbort(xid, false);
+    }
+
+    /**
+     * @param autoAborted 为 true 时是 VM 因冲突自动回滚, 事务仍留在活跃事务表中,
+     *                    直到上层调用 abort, 期间的操作都抛出 t.err
+     */
+    private void internAbort(long xid, boolean autoAborted) {
+        Transaction t = activeTransaction.get(xid);
+        if (t == null) {
+            return;
+        }
+        if (!t.autoAborted) {
+            tm.abort(xid);
+            lt.remove(xid);
+        }
+        if (autoAborted) {
+            t.autoAborted = true;
+        } else {
+            activeTransaction.remove(xid);
+        }
+    }
+
+    private Exception autoAbort(Transaction t, Exception err) {
+        t.err = err;
+        internAbort(t.xid, true);
+        return err;
+    }
+
+    private Transaction getTransaction(long xid) {
+        Transaction t = activeTransaction.get(xid);
+        assert t != null;
+        return t;
+    }
+}
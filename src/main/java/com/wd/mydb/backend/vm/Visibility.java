@@ -0,0 +1,77 @@
+package com.wd.mydb.backend.vm;
+
+import com.wd.mydb.backend.tm.TransactionManager;
+
+/**
+ * 版本的可见性规则
+ * 先用事务自己的 XID 与快照排除, 只有排除不了时才查询 TM 中的事务状态 (XidStatusTable, 只读内存)
+ */
+public class Visibility {
+
+    /**
+     * 可重复读下, 要删除的版本已经被本事务看不到的事务删除 (提交在本事务开始之后), 发生了版本跳跃, 本事务需要回滚
+     * 读提交允许版本跳跃
+     * @param tm
+     * @param t
+     * @param e
+     * @return
+     */
+    public static boolean isVersionSkip(TransactionManager tm, Transaction t, Entry e) {
+        long xmax = e.getXmax();
+        if (t.level == Transaction.READ_COMMITTED) {
+            return false;
+        }
+        return tm.isCommitted(xmax) && (xmax > t.xid || t.isInSnapshot(xmax));
+    }
+
+    public static boolean isVisible(TransactionManager tm, Transaction t, Entry e) {
+        long[] versions = new long[2];
+        e.getVersions(versions);
+        return isVisible(tm, t, versions[0], versions[1]);
+    }
+
+    public static boolean isVisible(TransactionManager tm, Transaction t, long xmin, long xmax) {
+        if (t.level == Transaction.READ_COMMITTED) {
+            return readCommitted(tm, t, xmin, xmax);
+        } else {
+            return repeatableRead(tm, t, xmin, xmax);
+        }
+    }
+
+    /**
+     * 由本事务创建且未被删除, 或由已提交的事务创建且未被删除 (删除者未提交也算未删除)
+     */
+    private static boolean readCommitted(TransactionManager tm, Transaction t, long xmin, long xmax) {
+        long xid = t.xid;
+        if (xmin == xid && xmax == 0) {
+            return true;
+        }
+        if (xmin != xid && tm.isCommitted(xmin)) {
+            if (xmax == 0) {
+                return true;
+            }
+            return xmax != xid && !tm.isCommitted(xmax);
+        }
+        return false;
+    }
+
+    /**
+     * 由本事务创建且未被删除, 或由本事务开始前已提交的事务创建,
+     * 且未被删除或删除者在本事务开始时还未提交 (在快照中, 或 XID 更大, 或最终没有提交)
+     */
+    private static boolean repeatableRead(TransactionManager tm, Transaction t, long xmin, long xmax) {
+        long xid = t.xid;
+        if (xmin == xid && xmax == 0) {
+            return true;
+        }
+        if (xmin < xid && !t.isInSnapshot(xmin) && tm.isCommitted(xmin)) {
+            if (xmax == 0) {
+                return true;
+            }
+            if (xmax != xid) {
+                return xmax > xid || t.isInSnapshot(xmax) || !tm.isCommitted(xmax);
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,155 @@
+package com.wd.mydb.client;
+
+import com.wd.mydb.transport.Codec;
+import com.wd.mydb.transport.Request;
+import com.wd.mydb.transport.Response;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 客户端, 一个 Client 对应一条连接
+ * send 不等待响应, 可以连续发送多个请求 (流水线), 响应按 Id 交给对应的 future.
+ * 服务端按发送顺序执行同一连接上的请求, 因此同一事务的请求可以不等前一个完成就发出.
+ * begin / commit 等同步方法是 send(...).get() 的简写, 响应为 ERROR 时抛出异常
+ */
+public class Client {
+
+    private final EventLoopGroup group;
+    private final Channel channel;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Map<Integer, CompletableFuture<Response>> inflight = new ConcurrentHashMap<>();
+
+    private Client(EventLoopGroup group, Channel channel) {
+        this.group = group;
+        this.channel = channel;
+    }
+
+    public static Client connect(String host, int port) throws InterruptedException {
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        Client[] client = new Client[1];
+        Bootstrap b = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        Codec.initClient(ch.pipeline());
+                        ch.pipeline().addLast("dispatcher", new SimpleChannelInboundHandler<Response>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, Response res) {
+                                client[0].complete(res);
+                            }
+
+                            @Override
+                            public void channelInactive(ChannelHandlerContext ctx) {
+                                client[0].failAll(new IOException("Connection closed"));
+                            }
+
+                            @Override
+                            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                                ctx.close();
+                            }
+                        });
+                    }
+                });
+        Channel ch;
+        try {
+            ch = b.connect(host, port).sync().channel();
+        } catch (InterruptedException e) {
+            group.shutdownGracefully();
+            throw e;
+        }
+        client[0] = new Client(group, ch);
+        return client[0];
+    }
+
+    /**
+     * 发送请求, 不等待响应
+     * @param req Id 由客户端分配, 传入的值会被覆盖
+     * @return
+     */
+    public CompletableFuture<Response> send(Request req) {
+        CompletableFuture<Response> f = new CompletableFuture<>();
+        req.id = nextId.incrementAndGet();
+        inflight.put(req.id, f);
+        channel.writeAndFlush(req).addListener(future -> {
+            if (!future.isSuccess()) {
+                inflight.remove(req.id);
+                f.completeExceptionally(future.cause());
+            }
+        });
+        return f;
+    }
+
+    public long begin(int level) throws Exception {
+        return call(Request.begin(level)).value;
+    }
+
+    public void commit(long xid) throws Exception {
+        call(Request.commit(xid));
+    }
+
+    public void abort(long xid) throws Exception {
+        call(Request.abort(xid));
+    }
+
+    /**
+     * @return 记录不存在或对 xid 不可见时返回 null
+     */
+    public byte[] read(long xid, long uid) throws Exception {
+        Response res = call(Request.read(xid, uid));
+        return res.status == Response.NULL ? null : res.data;
+    }
+
+    public long insert(long xid, byte[] data) throws Exception {
+        return call(Request.insert(xid, data)).value;
+    }
+
+    public boolean delete(long xid, long uid) throws Exception {
+        return call(Request.delete(xid, uid)).value == 1;
+    }
+
+    public void close() {
+        channel.close().syncUninterruptibly();
+        group.shutdownGracefully();
+    }
+
+    private Response call(Request req) throws Exception {
+        Response res = send(req).get();
+        if (res.status == Response.ERROR) {
+            throw new RuntimeException(res.errorMessage());
+        }
+        return res;
+    }
+
+    private void complete(Response res) {
+        CompletableFuture<Response> f = inflight.remove(res.id);
+        if (f != null) {
+            f.complete(res);
+        }
+    }
+
+    private void failAll(Exception e) {
+        for (Integer id : inflight.keySet()) {
+            CompletableFuture<Response> f = inflight.remove(id);
+            if (f != null) {
+                f.completeExceptionally(e);
+            }
+        }
+    }
+}
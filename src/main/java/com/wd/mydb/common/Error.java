@@ -22,5 +22,31 @@ public class Error {
     public static final Exception BadLogFileException = new RuntimeException("Bad Log File!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception PageOutOfRangeException = new RuntimeException("Page number out of range!");
+    public static final Exception CorruptedPageException = new RuntimeException("Page checksum mismatch!");
+    public static final Exception InvalidUidException = new RuntimeException("Invalid uid!");
+
+    /**
+     * vm
+     */
+    public static final Exception NullEntryException = new RuntimeException("Null entry!");
+    public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
+    public static final Exception DeadlockException = new RuntimeException("Deadlock!");
+    public static final Exception LockTimeoutException = new RuntimeException("Lock wait timeout!");
+
+    /**
+     * transport
+     */
+    public static final Exception InvalidPkgDataException = new RuntimeException("Invalid package data!");
+
+    /**
+     * server
+     */
+    public static final Exception NoTransactionException = new RuntimeException("Not in transaction!");
+
+    /**
+     * launcher
+     */
+    public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
     
 }
@@ -0,0 +1,76 @@
+package com.wd.mydb.transport;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.handler.codec.MessageToMessageCodec;
+import io.netty.handler.flush.FlushConsolidationHandler;
+
+import java.util.List;
+
+/**
+ * 帧与消息之间的编解码
+ * 每个帧为 [Length 4字节] [Body], 服务端把帧解析为 Request 并编码 Response, 客户端相反
+ */
+public class Codec {
+
+    /**
+     * 单个帧的最大长度
+     */
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    /**
+     * 客户端连续合并的 flush 数的上限
+     */
+    private static final int EXPLICIT_FLUSH_AFTER_FLUSHES = 256;
+
+    public static void initServer(ChannelPipeline p) {
+        initFrame(p);
+        p.addLast("codec", new ServerCodec());
+    }
+
+    /**
+     * 客户端每个请求都会 flush, 由 FlushConsolidationHandler 把流水线上连续的 flush 合并成一次写出
+     * @param p
+     */
+    public static void initClient(ChannelPipeline p) {
+        p.addLast("flushConsolidation", new FlushConsolidationHandler(EXPLICIT_FLUSH_AFTER_FLUSHES, true));
+        initFrame(p);
+        p.addLast("codec", new ClientCodec());
+    }
+
+    private static void initFrame(ChannelPipeline p) {
+        p.addLast("frameDecoder", new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 4));
+        p.addLast("framePrepender", new LengthFieldPrepender(4));
+    }
+
+    static class ServerCodec extends MessageToMessageCodec<ByteBuf, Response> {
+        @Override
+        protected void encode(ChannelHandlerContext ctx, Response msg, List<Object> out) {
+            ByteBuf buf = ctx.alloc().buffer(Response.HEADER_LENGTH + msg.data.length);
+            msg.writeTo(buf);
+            out.add(buf);
+        }
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) throws Exception {
+            out.add(Request.parse(msg));
+        }
+    }
+
+    static class ClientCodec extends MessageToMessageCodec<ByteBuf, Request> {
+        @Override
+        protected void encode(ChannelHandlerContext ctx, Request msg, List<Object> out) {
+            ByteBuf buf = ctx.alloc().buffer(Request.HEADER_LENGTH + msg.data.length);
+            msg.writeTo(buf);
+            out.add(buf);
+        }
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) throws Exception {
+            out.add(Response.parse(msg));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.wd.mydb.transport;
+
+import com.wd.mydb.common.Error;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 客户端发往服务端的请求
+ * 请求帧 (前面由 LengthFieldPrepender 加上 4 字节长度):
+ * [Id] [Op] [Xid] [Arg] [Data]
+ * Id: 4字节, 客户端分配, 响应中原样带回, 同一连接上可以有多个未完成的请求
+ * Op: 1字节, 操作类型
+ * Xid: 8字节, 操作所属的事务, BEGIN 时忽略
+ * Arg: 8字节, BEGIN 时为隔离级别, READ / DELETE 时为 uid, 其余忽略
+ * Data: INSERT 的数据, 其余为空
+ */
+public class Request {
+
+    public static final byte BEGIN = 0;
+    public static final byte COMMIT = 1;
+    public static final byte ABORT = 2;
+    public static final byte READ = 3;
+    public static final byte INSERT = 4;
+    public static final byte DELETE = 5;
+
+    static final int HEADER_LENGTH = 4 + 1 + 8 + 8;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    public int id;
+    public byte op;
+    public long xid;
+    public long arg;
+    public byte[] data;
+
+    public Request(int id, byte op, long xid, long arg, byte[] data) {
+        this.id = id;
+        this.op = op;
+        this.xid = xid;
+        this.arg = arg;
+        this.data = data == null ? EMPTY : data;
+    }
+
+    public static Request begin(int level) {
+        return new Request(0, BEGIN, 0, level, null);
+    }
+
+    public static Request commit(long xid) {
+        return new Request(0, COMMIT, xid, 0, null);
+    }
+
+    public static Request abort(long xid) {
+        return new Request(0, ABORT, xid, 0, null);
+    }
+
+    public static Request read(long xid, long uid) {
+        return new Request(0, READ, xid, uid, null);
+    }
+
+    public static Request insert(long xid, byte[] data) {
+        return new Request(0, INSERT, xid, 0, data);
+    }
+
+    public static Request delete(long xid, long uid) {
+        return new Request(0, DELETE, xid, uid, null);
+    }
+
+    public void writeTo(ByteBuf out) {
+        out.writeInt(id);
+        out.writeByte(op);
+        out.writeLong(xid);
+        out.writeLong(arg);
+        out.writeBytes(data);
+    }
+
+    /**
+     * 从一个完整的帧中解析请求
+     * @param in
+     * @return
+     * @throws Exception
+     */
+    public static Request parse(ByteBuf in) throws Exception {
+        if (in.readableBytes() < HEADER_LENGTH) {
+            throw Error.InvalidPkgDataException;
+        }
+        int id = in.readInt();
+        byte op = in.readByte();
+        if (op < BEGIN || op > DELETE) {
+            throw Error.InvalidPkgDataException;
+        }
+        long xid = in.readLong();
+        long arg = in.readLong();
+        byte[] data = new byte[in.readableBytes()];
+        in.readBytes(data);
+        return new Request(id, op, xid, arg, data);
+    }
+}
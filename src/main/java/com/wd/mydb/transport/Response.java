@@ -0,0 +1,78 @@
+package com.wd.mydb.transport;
+
+import com.wd.mydb.common.Error;
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 服务端返回的响应
+ * 响应帧 (前面由 LengthFieldPrepender 加上 4 字节长度):
+ * [Id] [Status] [Value] [Data]
+ * Id: 4字节, 对应请求的 Id
+ * Status: 1字节, OK / NULL / ERROR
+ * Value: 8字节, BEGIN 返回 xid, INSERT 返回 uid, DELETE 返回 1 或 0
+ * Data: READ 返回的数据, ERROR 时为 UTF-8 编码的错误信息
+ */
+public class Response {
+
+    public static final byte OK = 0;
+    public static final byte NULL = 1;
+    public static final byte ERROR = 2;
+
+    static final int HEADER_LENGTH = 4 + 1 + 8;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    public int id;
+    public byte status;
+    public long value;
+    public byte[] data;
+
+    public Response(int id, byte status, long value, byte[] data) {
+        this.id = id;
+        this.status = status;
+        this.value = value;
+        this.data = data == null ? EMPTY : data;
+    }
+
+    public static Response ok(int id, long value) {
+        return new Response(id, OK, value, null);
+    }
+
+    public static Response ok(int id, byte[] data) {
+        return new Response(id, OK, 0, data);
+    }
+
+    public static Response nil(int id) {
+        return new Response(id, NULL, 0, null);
+    }
+
+    public static Response error(int id, Exception e) {
+        String msg = e.getMessage() == null ? e.toString() : e.getMessage();
+        return new Response(id, ERROR, 0, msg.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String errorMessage() {
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    public void writeTo(ByteBuf out) {
+        out.writeInt(id);
+        out.writeByte(status);
+        out.writeLong(value);
+        out.writeBytes(data);
+    }
+
+    public static Response parse(ByteBuf in) throws Exception {
+        if (in.readableBytes() < HEADER_LENGTH) {
+            throw Error.InvalidPkgDataException;
+        }
+        int id = in.readInt();
+        byte status = in.readByte();
+        long value = in.readLong();
+        byte[] data = new byte[in.readableBytes()];
+        in.readBytes(data);
+        return new Response(id, status, value, data);
+    }
+}